@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Minimal timing harness shared by the benchmarks in this directory. Runs a
+ * warmup pass, then reports operations per second and bytes allocated per
+ * operation. Allocation counts come from the JVM thread MX bean when running
+ * on a desktop VM, or from {@code android.os.Debug} when running on a device.
+ */
+class BenchmarkRunner {
+    /**
+     * Single unit of work to be measured.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Unit of work whose result we want to weigh.
+     */
+    interface Producer {
+        Object produce() throws Exception;
+    }
+
+    private static final int WARMUP_MILLIS = 1000;
+    private static final int MEASURE_MILLIS = 3000;
+
+    /**
+     * Results held at once by {@link #measureRetained(Producer)}, so each is
+     * weighed well above the noise of a collected heap.
+     */
+    private static final int RETAINED_COPIES = 200;
+
+    /**
+     * Collections to run before trusting a heap reading.
+     */
+    private static final int COLLECTIONS = 10;
+
+    private static Method sThreadAllocatedBytes = null;
+    private static Object sThreadBean = null;
+    private static boolean sDalvikCounting = false;
+
+    /**
+     * Results being weighed, kept in a field so the compiler can't decide
+     * they're unreachable before we measure them.
+     */
+    private static Object[] sRetained = null;
+
+    /**
+     * Outcome of measuring a single {@link Task}.
+     */
+    static class Result {
+        double opsPerSec;
+        /** Bytes allocated per operation, or -1 if unknown. */
+        long bytesPerOp;
+    }
+
+    /**
+     * Run the given task repeatedly and print its throughput and allocation
+     * rate. Returns the measured operations per second.
+     */
+    static double measure(String name, Task task) throws Exception {
+        Result result = run(task);
+        String alloc = (result.bytesPerOp < 0) ? "n/a" : String.valueOf(result.bytesPerOp);
+        System.out.println(String.format("%-40s %12.1f ops/s %10s bytes/op", name,
+                result.opsPerSec, alloc));
+        return result.opsPerSec;
+    }
+
+    /**
+     * Run the given task repeatedly without printing anything.
+     */
+    static Result run(Task task) throws Exception {
+        // Warm up so that any JIT has a chance to settle
+        long warmupEnd = System.currentTimeMillis() + WARMUP_MILLIS;
+        while (System.currentTimeMillis() < warmupEnd) {
+            task.run();
+        }
+
+        long ops = 0;
+        long allocStart = getAllocatedBytes();
+        long start = System.nanoTime();
+        long end = start + MEASURE_MILLIS * 1000000L;
+        long now = start;
+        while (now < end) {
+            task.run();
+            ops++;
+            now = System.nanoTime();
+        }
+        long allocEnd = getAllocatedBytes();
+
+        Result result = new Result();
+        result.opsPerSec = ops / ((now - start) / 1e9);
+        result.bytesPerOp = (allocStart < 0 || allocEnd < 0) ? -1 : (allocEnd - allocStart) / ops;
+        return result;
+    }
+
+    /**
+     * Return how many bytes of heap each result of the given producer keeps
+     * alive, which is what grows with input size once parsing is done. Many
+     * results are held at once and the heap is collected before and after,
+     * so temporary garbage and allocation chunks don't count.
+     */
+    static long measureRetained(Producer producer) throws Exception {
+        // Make sure classes and caches are loaded before the baseline
+        producer.produce();
+
+        sRetained = new Object[RETAINED_COPIES];
+        try {
+            long before = usedAfterCollection();
+            for (int i = 0; i < sRetained.length; i++) {
+                sRetained[i] = producer.produce();
+            }
+            long after = usedAfterCollection();
+            return Math.max(0, after - before) / RETAINED_COPIES;
+        } finally {
+            sRetained = null;
+        }
+    }
+
+    /**
+     * Return the smallest used heap seen across several collections. Freed
+     * objects can linger for a few collections, and they only ever inflate
+     * the reading.
+     */
+    private static long usedAfterCollection() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < COLLECTIONS; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Return total bytes allocated by the current thread so far, or -1 if the
+     * runtime doesn't expose that detail.
+     */
+    static synchronized long getAllocatedBytes() {
+        try {
+            if (sThreadAllocatedBytes == null) {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                sThreadBean = factory.getMethod("getThreadMXBean").invoke(null);
+                Class<?> threads = Class.forName("com.sun.management.ThreadMXBean");
+                sThreadAllocatedBytes = threads.getMethod("getThreadAllocatedBytes", long.class);
+            }
+            return (Long)sThreadAllocatedBytes.invoke(sThreadBean,
+                    Thread.currentThread().getId());
+        } catch (Throwable e) {
+            // Not a HotSpot-style VM, so fall through to Dalvik counters
+        }
+        try {
+            Class<?> debug = Class.forName("android.os.Debug");
+            if (!sDalvikCounting) {
+                // Counting keeps running once started, so only start it once
+                debug.getMethod("startAllocCounting").invoke(null);
+                sDalvikCounting = true;
+            }
+            return (Integer)debug.getMethod("getThreadAllocSize").invoke(null);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sample DWML responses used by the benchmarks in this directory. The compact
+ * sample is the response originally bundled in {@code WebserviceHelper} for
+ * offline testing.
+ */
+class DwmlFixtures {
+    /**
+     * Four-day forecast for a single point, exactly as returned by the
+     * webservice, including one active hazard.
+     */
+    static final String EXAMPLE_RESPONSE = "<?xml version=\"1.0\"?><dwml version=\"1.0\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:noNamespaceSchemaLocation=\"http://www.nws.noaa.gov/forecasts/xml/DWMLgen/schema/DWML.xsd\"><head><product srsName=\"WGS 1984\" concise-name=\"dwmlByDay\" operational-mode=\"official\"><title>NOAA's National Weather Service Forecast by 24 Hour Period</title><field>meteorological</field><category>forecast</category><creation-date refresh-frequency=\"PT1H\">2009-03-22T22:56:32Z</creation-date></product><source><more-information>http://www.nws.noaa.gov/forecasts/xml/</more-information><production-center>Meteorological Development Laboratory<sub-center>Product Generation Branch</sub-center></production-center><disclaimer>http://www.nws.noaa.gov/disclaimer.html</disclaimer><credit>http://www.weather.gov/</credit><credit-logo>http://www.weather.gov/images/xml_logo.gif</credit-logo><feedback>http://www.weather.gov/feedback.php</feedback></source></head><data><location><location-key>point1</location-key><point latitude=\"39.91\" longitude=\"-121.29\"/></location><moreWeatherInformation applicable-location=\"point1\">http://forecast.weather.gov/MapClick.php?textField1=39.91&amp;textField2=-121.29</moreWeatherInformation><time-layout time-coordinate=\"local\" summarization=\"24hourly\"><layout-key>k-p24h-n4-1</layout-key><start-valid-time>2009-03-22T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-23T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-23T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-24T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-24T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-25T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-25T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-26T06:00:00-07:00</end-valid-time></time-layout><time-layout time-coordinate=\"local\" summarization=\"12hourly\"><layout-key>k-p12h-n8-2</layout-key><start-valid-time>2009-03-22T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-22T18:00:00-07:00</end-valid-time><start-valid-time>2009-03-22T18:00:00-07:00</start-valid-time><end-valid-time>2009-03-23T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-23T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-23T18:00:00-07:00</end-valid-time><start-valid-time>2009-03-23T18:00:00-07:00</start-valid-time><end-valid-time>2009-03-24T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-24T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-24T18:00:00-07:00</end-valid-time><start-valid-time>2009-03-24T18:00:00-07:00</start-valid-time><end-valid-time>2009-03-25T06:00:00-07:00</end-valid-time><start-valid-time>2009-03-25T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-25T18:00:00-07:00</end-valid-time><start-valid-time>2009-03-25T18:00:00-07:00</start-valid-time><end-valid-time>2009-03-26T06:00:00-07:00</end-valid-time></time-layout><time-layout time-coordinate=\"local\" summarization=\"24hourly\"><layout-key>k-p4d-n1-3</layout-key><start-valid-time>2009-03-22T06:00:00-07:00</start-valid-time><end-valid-time>2009-03-26T06:00:00-07:00</end-valid-time></time-layout><parameters applicable-location=\"point1\"><temperature type=\"maximum\" units=\"Fahrenheit\" time-layout=\"k-p24h-n4-1\"><name>Daily Maximum Temperature</name><value>32</value><value>47</value><value>55</value><value>58</value></temperature><temperature type=\"minimum\" units=\"Fahrenheit\" time-layout=\"k-p24h-n4-1\"><name>Daily Minimum Temperature</name><value>24</value><value>28</value><value>32</value><value>31</value></temperature><probability-of-precipitation type=\"12 hour\" units=\"percent\" time-layout=\"k-p12h-n8-2\"><name>12 Hourly Probability of Precipitation</name><value>98</value><value>22</value><value>6</value><value>6</value><value>4</value><value>0</value><value>16</value><value>18</value></probability-of-precipitation><weather time-layout=\"k-p24h-n4-1\"><name>Weather Type, Coverage, and Intensity</name><weather-conditions weather-summary=\"Slight Chance Snow Showers\"><value coverage=\"slight chance\" intensity=\"light\" weather-type=\"snow showers\" qualifier=\"none\"/></weather-conditions><weather-conditions weather-summary=\"Partly Cloudy\"/><weather-conditions weather-summary=\"Mostly Sunny\"/><weather-conditions weather-summary=\"Partly Cloudy\"/></weather><conditions-icon type=\"forecast-NWS\" time-layout=\"k-p24h-n4-1\"><name>Conditions Icons</name><icon-link>http://www.nws.noaa.gov/weather/images/fcicons/sn100.jpg</icon-link><icon-link>http://www.nws.noaa.gov/weather/images/fcicons/sct.jpg</icon-link><icon-link>http://www.nws.noaa.gov/weather/images/fcicons/few.jpg</icon-link><icon-link>http://www.nws.noaa.gov/weather/images/fcicons/sct.jpg</icon-link></conditions-icon><hazards time-layout=\"k-p4d-n1-3\"><name>Watches, Warnings, and Advisories</name><hazard-conditions><hazard hazardCode=\"LW.Y\" phenomena=\"Lake Wind\" significance=\"Advisory\" hazardType=\"long duration\"><hazardTextURL>http://forecast.weather.gov/wwamap/wwatxtget.php?cwa=usa&amp;wwa=Lake%20Wind%20Advisory</hazardTextURL></hazard></hazard-conditions></hazards></parameters></data></dwml>";
+
+    /**
+     * Return {@link #EXAMPLE_RESPONSE} re-indented with one tag per line,
+     * which is how the webservice usually formats longer responses.
+     */
+    static String indented() {
+        StringBuilder builder = new StringBuilder(EXAMPLE_RESPONSE.length() * 2);
+        int depth = 0;
+        int length = EXAMPLE_RESPONSE.length();
+        for (int i = 0; i < length; i++) {
+            char c = EXAMPLE_RESPONSE.charAt(i);
+            if (c == '<' && i > 0) {
+                boolean closing = EXAMPLE_RESPONSE.charAt(i + 1) == '/';
+                boolean afterText = EXAMPLE_RESPONSE.charAt(i - 1) != '>';
+                if (closing) {
+                    depth--;
+                }
+                if (!(closing && afterText)) {
+                    builder.append('\n');
+                    for (int j = 0; j < depth; j++) {
+                        builder.append("  ");
+                    }
+                }
+                if (!closing && EXAMPLE_RESPONSE.charAt(i + 1) != '?') {
+                    int end = EXAMPLE_RESPONSE.indexOf('>', i);
+                    if (EXAMPLE_RESPONSE.charAt(end - 1) != '/') {
+                        depth++;
+                    }
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Rebuild the kind of layout map that
+     * {@link MapDwmlParser#flattenForecasts(Map)} works on from already
+     * flattened forecasts, mixing in the temperature-only entries that the
+     * original parser collected for each day.
+     */
+    static Map<String, List<Forecast>> toLayoutMap(ForecastBatch forecasts) {
+        List<Forecast> alerts = new ArrayList<Forecast>();
+        List<Forecast> days = new ArrayList<Forecast>();
+        for (int i = 0; i < forecasts.size(); i++) {
+            Forecast forecast = new Forecast();
+            forecast.alert = forecasts.isAlert(i);
+            forecast.validStart = forecasts.getValidStart(i);
+            forecast.tempHigh = forecasts.getTempHigh(i);
+            forecast.tempLow = forecasts.getTempLow(i);
+            forecast.conditions = forecasts.getConditions(i);
+            forecast.url = forecasts.getUrl(i);
+            if (forecast.alert) {
+                alerts.add(forecast);
+            } else {
+                days.add(forecast);
+                Forecast empty = new Forecast();
+                empty.validStart = forecast.validStart;
+                empty.tempLow = forecast.tempLow;
+                days.add(empty);
+            }
+        }
+
+        Map<String, List<Forecast>> layouts = new HashMap<String, List<Forecast>>();
+        layouts.put("k-p24h-n" + days.size() + "-1", days);
+        layouts.put("k-p" + days.size() + "d-n" + alerts.size() + "-3", alerts);
+        return layouts;
+    }
+}
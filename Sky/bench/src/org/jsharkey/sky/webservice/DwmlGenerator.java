@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.Random;
+
+/**
+ * Generate synthetic DWML responses shaped like the output of
+ * {@link NoaaSource#WEBSERVICE_URL} for any number of days. Each document has
+ * daily, 12-hourly and hazard time-layouts, the same skipped blocks the real
+ * webservice sends, and the requested number of hazards. Output is
+ * deterministic for a given seed.
+ */
+class DwmlGenerator {
+    private static final String[] SUMMARIES = new String[] {
+        "Sunny", "Mostly Sunny", "Partly Cloudy", "Mostly Cloudy", "Chance Rain Showers",
+        "Slight Chance Snow Showers", "Rain", "Snow & Sleet",
+    };
+
+    private static final String[] PHENOMENA = new String[] {
+        "Lake Wind", "Wind Chill", "Winter Storm", "Flood", "Red Flag", "Heat",
+    };
+
+    private static final String[] SIGNIFICANCE = new String[] {
+        "Advisory", "Watch", "Warning",
+    };
+
+    /** First period in the bundled sample, 6am local on 2009-03-22. */
+    private static final long START_MILLIS = 1237726800000L;
+    private static final long OFFSET_MILLIS = -7 * 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final Random mRandom;
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    private DwmlGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Generate a response covering the given number of days, with the given
+     * number of hazards.
+     */
+    static String generate(int days, int hazards, long seed) {
+        return new DwmlGenerator(seed).build(days, hazards);
+    }
+
+    /**
+     * Number of forecasts any engine should find in a document returned from
+     * {@link #generate(int, int, long)}.
+     */
+    static int expectedForecasts(int days, int hazards) {
+        return days + hazards;
+    }
+
+    private String build(int days, int hazards) {
+        String daily = "k-p24h-n" + days + "-1";
+        String halfDaily = "k-p12h-n" + (days * 2) + "-2";
+        String hazardLayout = "k-p" + days + "d-n" + hazards + "-3";
+
+        append("<?xml version=\"1.0\"?>\n");
+        append("<dwml version=\"1.0\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"");
+        append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n");
+        append("  <head>\n");
+        append("    <product srsName=\"WGS 1984\" concise-name=\"dwmlByDay\">\n");
+        append("      <title>NOAA's National Weather Service Forecast by 24 Hour Period</title>\n");
+        append("      <creation-date refresh-frequency=\"PT1H\">2009-03-22T22:56:32Z</creation-date>\n");
+        append("    </product>\n");
+        append("  </head>\n");
+        append("  <data>\n");
+        append("    <location>\n");
+        append("      <location-key>point1</location-key>\n");
+        append("      <point latitude=\"39.91\" longitude=\"-121.29\"/>\n");
+        append("    </location>\n");
+        append("    <moreWeatherInformation applicable-location=\"point1\">");
+        append("http://forecast.weather.gov/MapClick.php?textField1=39.91&amp;textField2=-121.29");
+        append("</moreWeatherInformation>\n");
+
+        // Daily layout, then 12-hourly layout used only by skipped blocks
+        appendLayout(daily, "24hourly", days, DAY_MILLIS);
+        appendLayout(halfDaily, "12hourly", days * 2, DAY_MILLIS / 2);
+
+        // Hazards each get their own period spread across the horizon
+        append("    <time-layout time-coordinate=\"local\" summarization=\"24hourly\">\n");
+        append("      <layout-key>").append(hazardLayout).append("</layout-key>\n");
+        for (int i = 0; i < hazards; i++) {
+            long start = START_MILLIS + (long)(i % days) * DAY_MILLIS;
+            appendTime("start-valid-time", start);
+            appendTime("end-valid-time", start + DAY_MILLIS * 2);
+        }
+        append("    </time-layout>\n");
+
+        append("    <parameters applicable-location=\"point1\">\n");
+        int[] highs = new int[days];
+        for (int i = 0; i < days; i++) {
+            highs[i] = 40 + mRandom.nextInt(50);
+        }
+        appendTemperatures("maximum", "Daily Maximum Temperature", daily, highs, 0);
+        appendTemperatures("minimum", "Daily Minimum Temperature", daily, highs, -20);
+
+        append("      <probability-of-precipitation type=\"12 hour\" units=\"percent\"");
+        append(" time-layout=\"").append(halfDaily).append("\">\n");
+        append("        <name>12 Hourly Probability of Precipitation</name>\n");
+        for (int i = 0; i < days * 2; i++) {
+            append("        <value>").append(mRandom.nextInt(100)).append("</value>\n");
+        }
+        append("      </probability-of-precipitation>\n");
+
+        append("      <weather time-layout=\"").append(daily).append("\">\n");
+        append("        <name>Weather Type, Coverage, and Intensity</name>\n");
+        for (int i = 0; i < days; i++) {
+            String summary = SUMMARIES[mRandom.nextInt(SUMMARIES.length)];
+            append("        <weather-conditions weather-summary=\"");
+            append(summary.replace("&", "&amp;")).append("\"");
+            if (mRandom.nextBoolean()) {
+                append("/>\n");
+            } else {
+                append(">\n");
+                append("          <value coverage=\"chance\" intensity=\"light\"");
+                append(" weather-type=\"rain showers\" qualifier=\"none\"/>\n");
+                append("        </weather-conditions>\n");
+            }
+        }
+        append("      </weather>\n");
+
+        append("      <conditions-icon type=\"forecast-NWS\" time-layout=\"");
+        append(daily).append("\">\n");
+        append("        <name>Conditions Icons</name>\n");
+        for (int i = 0; i < days; i++) {
+            append("        <icon-link>http://www.nws.noaa.gov/weather/images/fcicons/sct.jpg");
+            append("</icon-link>\n");
+        }
+        append("      </conditions-icon>\n");
+
+        append("      <hazards time-layout=\"").append(hazardLayout).append("\">\n");
+        append("        <name>Watches, Warnings, and Advisories</name>\n");
+        for (int i = 0; i < hazards; i++) {
+            String phenomena = PHENOMENA[mRandom.nextInt(PHENOMENA.length)];
+            String significance = SIGNIFICANCE[mRandom.nextInt(SIGNIFICANCE.length)];
+            append("        <hazard-conditions>\n");
+            append("          <hazard hazardCode=\"XX.Y\" phenomena=\"").append(phenomena);
+            append("\" significance=\"").append(significance);
+            append("\" hazardType=\"long duration\">\n");
+            append("            <hazardTextURL>http://forecast.weather.gov/wwamap/wwatxtget.php");
+            append("?cwa=usa&amp;wwa=").append(phenomena.replace(" ", "%20")).append("%20");
+            append(significance).append("</hazardTextURL>\n");
+            append("          </hazard>\n");
+            append("        </hazard-conditions>\n");
+        }
+        append("      </hazards>\n");
+        append("    </parameters>\n");
+        append("  </data>\n");
+        append("</dwml>\n");
+
+        return mBuilder.toString();
+    }
+
+    private StringBuilder append(String value) {
+        return mBuilder.append(value);
+    }
+
+    private void appendLayout(String key, String summarization, int count, long period) {
+        append("    <time-layout time-coordinate=\"local\" summarization=\"");
+        append(summarization).append("\">\n");
+        append("      <layout-key>").append(key).append("</layout-key>\n");
+        for (int i = 0; i < count; i++) {
+            long start = START_MILLIS + i * period;
+            appendTime("start-valid-time", start);
+            appendTime("end-valid-time", start + period);
+        }
+        append("    </time-layout>\n");
+    }
+
+    private void appendTemperatures(String type, String name, String layout, int[] highs,
+            int offset) {
+        append("      <temperature type=\"").append(type).append("\" units=\"Fahrenheit\"");
+        append(" time-layout=\"").append(layout).append("\">\n");
+        append("        <name>").append(name).append("</name>\n");
+        for (int high : highs) {
+            append("        <value>").append(high + offset).append("</value>\n");
+        }
+        append("      </temperature>\n");
+    }
+
+    /**
+     * Append a timestamp in the local -07:00 offset the webservice uses for
+     * our sample location.
+     */
+    private void appendTime(String tag, long millis) {
+        long local = millis + OFFSET_MILLIS;
+        long days = local / DAY_MILLIS;
+        int secondOfDay = (int)((local % DAY_MILLIS) / 1000);
+
+        // Civil date from days since epoch
+        long z = days + 719468;
+        long era = z / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        append("      <").append(tag).append(">");
+        append(String.format("%04d-%02d-%02dT%02d:%02d:%02d-07:00", year, month, day,
+                secondOfDay / 3600, (secondOfDay / 60) % 60, secondOfDay % 60));
+        append("</").append(tag).append(">\n");
+    }
+}
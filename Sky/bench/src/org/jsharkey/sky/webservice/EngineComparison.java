@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run every {@link DwmlParser} engine over the same corpus of DWML responses
+ * and report throughput and allocation for each. Arguments are the files or
+ * directories that make up the corpus.
+ */
+public class EngineComparison {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: EngineComparison <file-or-dir>...");
+            System.exit(1);
+        }
+
+        final List<byte[]> corpus = new ArrayList<byte[]>();
+        for (String arg : args) {
+            collect(new File(arg), corpus);
+        }
+
+        long totalBytes = 0;
+        for (byte[] doc : corpus) {
+            totalBytes += doc.length;
+        }
+        System.out.println(String.format("Corpus of %d documents, %d bytes", corpus.size(),
+                totalBytes));
+
+        String[] names = new String[] {
+            "MapDwmlParser", "PullDwmlParser", "SaxDwmlParser", "ScannerDwmlParser",
+        };
+        DwmlParser[] parsers = new DwmlParser[] {
+            new MapDwmlParser(), new PullDwmlParser(true), new SaxDwmlParser(true),
+            new ScannerDwmlParser(true),
+        };
+
+        // Make sure every engine agrees before comparing their speed
+        for (int i = 1; i < parsers.length; i++) {
+            for (byte[] doc : corpus) {
+                ForecastBatch expected = parsers[0].parse(new ByteArrayInputStream(doc),
+                        new ParseStats());
+                ForecastBatch actual = parsers[i].parse(new ByteArrayInputStream(doc),
+                        new ParseStats());
+                if (expected.size() != actual.size()) {
+                    System.out.println("WARNING: " + names[i] + " found " + actual.size()
+                            + " forecasts, expected " + expected.size());
+                }
+            }
+        }
+
+        for (int i = 0; i < parsers.length; i++) {
+            final DwmlParser parser = parsers[i];
+            double passes = BenchmarkRunner.measure(names[i], new BenchmarkRunner.Task() {
+                public void run() throws Exception {
+                    for (byte[] doc : corpus) {
+                        parser.parse(new ByteArrayInputStream(doc), new ParseStats());
+                    }
+                }
+            });
+            System.out.println(String.format("%-40s %12.1f docs/s %10.2f MB/s", "",
+                    passes * corpus.size(), passes * totalBytes / (1024 * 1024)));
+        }
+    }
+
+    /**
+     * Read the given file into the corpus, or every file under it when it's a
+     * directory.
+     */
+    private static void collect(File file, List<byte[]> corpus) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collect(child, corpus);
+                }
+            }
+            return;
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            corpus.add(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+}
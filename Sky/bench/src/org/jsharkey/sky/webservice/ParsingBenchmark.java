@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measure each stage of turning a {@link NoaaSource} response into forecasts
+ * using {@link DwmlFixtures}: full parses with each engine, flattening the
+ * original layout map, and parsing the timestamps found in the sample.
+ */
+public class ParsingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] names = new String[] {
+            "compact", "indented",
+        };
+        byte[][] documents = new byte[][] {
+            DwmlFixtures.EXAMPLE_RESPONSE.getBytes("UTF-8"),
+            DwmlFixtures.indented().getBytes("UTF-8"),
+        };
+
+        for (int i = 0; i < documents.length; i++) {
+            final byte[] document = documents[i];
+            System.out.println(String.format("Fixture %s, %d bytes", names[i], document.length));
+
+            measureParser("MapDwmlParser", new MapDwmlParser(), document);
+            measureParser("PullDwmlParser (NoaaSource default)", new PullDwmlParser(true),
+                    document);
+            measureParser("PullDwmlParser without early exit", new PullDwmlParser(false),
+                    document);
+            measureParser("SaxDwmlParser", new SaxDwmlParser(true), document);
+            measureParser("ScannerDwmlParser", new ScannerDwmlParser(true), document);
+        }
+
+        ForecastBatch parsed = new MapDwmlParser().parse(
+                new ByteArrayInputStream(documents[0]), new ParseStats());
+        final Map<String, List<Forecast>> layouts = DwmlFixtures.toLayoutMap(parsed);
+
+        System.out.println("Helpers");
+        BenchmarkRunner.measure("MapDwmlParser.flattenForecasts", new BenchmarkRunner.Task() {
+            public void run() throws Exception {
+                MapDwmlParser.flattenForecasts(layouts);
+            }
+        });
+
+        // Timestamps exactly as they appear in the sample
+        List<String> found = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("<start-valid-time>([^<]+)<").matcher(
+                DwmlFixtures.EXAMPLE_RESPONSE);
+        while (matcher.find()) {
+            found.add(matcher.group(1));
+        }
+        final String[] timestamps = found.toArray(new String[found.size()]);
+        BenchmarkRunner.measure("DwmlTimestamp.parse x" + timestamps.length,
+                new BenchmarkRunner.Task() {
+                    public void run() throws Exception {
+                        for (String timestamp : timestamps) {
+                            DwmlTimestamp.parse(timestamp);
+                        }
+                    }
+                });
+    }
+
+    private static void measureParser(String name, final DwmlParser parser,
+            final byte[] document) throws Exception {
+        BenchmarkRunner.measure(name, new BenchmarkRunner.Task() {
+            public void run() throws Exception {
+                parser.parse(new ByteArrayInputStream(document), new ParseStats());
+            }
+        });
+    }
+}
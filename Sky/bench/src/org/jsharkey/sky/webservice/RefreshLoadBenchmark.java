@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * End-to-end throughput of the forecast refresh pipeline against a local
+ * {@link StandInServer}, without touching weather.gov. Refreshes the given
+ * number of widgets, each at its own point, through the same
+ * {@link NoaaSource} fetch-and-parse path that UpdateService uses, first
+ * one request per widget and then through batch queries.
+ * <p>
+ * Storing into the ForecastProvider is left out, since it needs a device.
+ * {@link NoaaSource} logs through {@code android.util.Log}, so run this on a
+ * device or with a working {@code Log} on the classpath.
+ * <p>
+ * Usage: <code>RefreshLoadBenchmark [widgets] [threads] [latencyMs]
+ * [bytesPerSec] [errorRate]</code>
+ */
+class RefreshLoadBenchmark {
+    private static final int FORECAST_DAYS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int widgets = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1])
+                : WebserviceHelper.MAX_CONNECTIONS;
+        long latency = (args.length > 2) ? Long.parseLong(args[2]) : 50;
+        long bandwidth = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+        double errorRate = (args.length > 4) ? Double.parseDouble(args[4]) : 0;
+
+        StandInServer server = new StandInServer().start();
+        server.setLatency(latency);
+        server.setBandwidth(bandwidth);
+        server.setErrorRate(errorRate);
+
+        WebserviceHelper.setUserAgent("Sky/bench");
+        WebserviceHelper.setEndpoint(server.getEndpoint());
+        // Measure the pipeline itself rather than our own politeness
+        WebserviceHelper.setRateLimit(1000000, 1000000);
+
+        double[] lats = new double[widgets];
+        double[] lons = new double[widgets];
+        for (int i = 0; i < widgets; i++) {
+            lats[i] = 30 + (i / 100) * 0.1;
+            lons[i] = -120 + (i % 100) * 0.1;
+        }
+
+        System.out.println(String.format(
+                "%d widgets, %d threads, %dms latency, %s bandwidth, %.0f%% errors", widgets,
+                threads, latency, (bandwidth > 0) ? bandwidth + " B/s" : "unlimited",
+                errorRate * 100));
+
+        try {
+            measureSingle(server, lats, lons, threads);
+            measureBatch(server, lats, lons);
+        } finally {
+            WebserviceHelper.setEndpoint(null);
+            server.stop();
+        }
+        System.out.println(WebserviceHelper.getDiagnostics());
+    }
+
+    /**
+     * Refresh every widget with its own request through
+     * {@link AsyncForecastSource}, with the shared executor running the given
+     * number of threads. Latency is measured from submitting, so it includes
+     * time spent queued.
+     */
+    private static void measureSingle(StandInServer server, double[] lats, double[] lons,
+            int threads) throws InterruptedException {
+        final int widgets = lats.length;
+        final long[] latencies = new long[widgets];
+        final AtomicInteger failures = new AtomicInteger();
+        AsyncForecastSource source = new AsyncForecastSource(new NoaaSource());
+        int requestsBefore = server.getRequestCount();
+        long bytesBefore = server.getBytesSent();
+
+        WebserviceHelper.setWorkerThreads(threads);
+        // Callbacks can still be running once a future is done, so wait on
+        // them instead
+        final CountDownLatch finished = new CountDownLatch(widgets);
+        long start = System.nanoTime();
+        for (int i = 0; i < widgets; i++) {
+            final int widget = i;
+            final long begin = System.nanoTime();
+            source.getForecasts(lats[i], lons[i], FORECAST_DAYS,
+                    new CacheValidators(null, null), new AsyncForecastSource.Callback() {
+                        public void onForecasts(ForecastBatch forecasts) {
+                            if (forecasts == null || forecasts.size() == 0) {
+                                failures.incrementAndGet();
+                            }
+                            latencies[widget] = System.nanoTime() - begin;
+                            finished.countDown();
+                        }
+
+                        public void onError(ParseException e) {
+                            failures.incrementAndGet();
+                            latencies[widget] = System.nanoTime() - begin;
+                            finished.countDown();
+                        }
+                    });
+        }
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        report("single", widgets, elapsed, failures.get(),
+                server.getRequestCount() - requestsBefore, server.getBytesSent() - bytesBefore);
+        System.out.println(String.format("%-10s p50=%.1fms p95=%.1fms max=%.1fms", "",
+                latencies[widgets / 2] / 1e6, latencies[(int)(widgets * 0.95)] / 1e6,
+                latencies[widgets - 1] / 1e6));
+    }
+
+    /**
+     * Refresh every widget through batch queries of at most
+     * {@link NoaaSource#MAX_BATCH_POINTS} points, as UpdateService does for a
+     * full update.
+     */
+    private static void measureBatch(StandInServer server, double[] lats, double[] lons) {
+        int widgets = lats.length;
+        int failures = 0;
+        NoaaSource source = new NoaaSource();
+        int requestsBefore = server.getRequestCount();
+        long bytesBefore = server.getBytesSent();
+
+        long start = System.nanoTime();
+        for (int offset = 0; offset < widgets; offset += NoaaSource.MAX_BATCH_POINTS) {
+            int count = Math.min(NoaaSource.MAX_BATCH_POINTS, widgets - offset);
+            double[] batchLats = new double[count];
+            double[] batchLons = new double[count];
+            System.arraycopy(lats, offset, batchLats, 0, count);
+            System.arraycopy(lons, offset, batchLons, 0, count);
+            try {
+                ForecastBatch[] forecasts = source.getForecasts(batchLats, batchLons,
+                        FORECAST_DAYS);
+                for (ForecastBatch batch : forecasts) {
+                    if (batch == null || batch.size() == 0) {
+                        failures++;
+                    }
+                }
+            } catch (ParseException e) {
+                failures += count;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report("batch", widgets, elapsed, failures, server.getRequestCount() - requestsBefore,
+                server.getBytesSent() - bytesBefore);
+    }
+
+    private static void report(String name, int widgets, long elapsedNanos, int failures,
+            int requests, long bytes) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(
+                "%-10s %10.1f widgets/s %6d requests %10d bytes %5d failed", name,
+                widgets / seconds, requests, bytes, failures));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measure how parsing and {@link MapDwmlParser#flattenForecasts(Map)} scale
+ * as the forecast horizon grows, using documents from {@link DwmlGenerator}.
+ * Arguments are the day counts to test. Output is one tab-separated row per
+ * day count and stage, ready to paste into a spreadsheet; flat
+ * <code>us/day</code>, <code>alloc/day</code> and <code>kept/day</code>
+ * columns mean time, garbage and the memory held by each result all scale
+ * linearly.
+ */
+public class ScalingBenchmark {
+    private static final int[] DEFAULT_DAYS = new int[] {
+        1, 4, 7, 14, 30, 90, 180, 365,
+    };
+
+    private static final long SEED = 1237726800000L;
+
+    public static void main(String[] args) throws Exception {
+        int[] dayCounts = DEFAULT_DAYS;
+        if (args.length > 0) {
+            dayCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                dayCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        String[] names = new String[] {
+            "MapDwmlParser", "PullDwmlParser", "SaxDwmlParser", "ScannerDwmlParser",
+        };
+        DwmlParser[] parsers = new DwmlParser[] {
+            new MapDwmlParser(), new PullDwmlParser(true), new SaxDwmlParser(true),
+            new ScannerDwmlParser(true),
+        };
+
+        System.out.println("days\thazards\tbytes\tstage\tus/op\tus/day\talloc/op\talloc/day"
+                + "\tkept/op\tkept/day");
+        for (int days : dayCounts) {
+            int hazards = days / 2 + 1;
+            final byte[] document = DwmlGenerator.generate(days, hazards, SEED).getBytes("UTF-8");
+            int expected = DwmlGenerator.expectedForecasts(days, hazards);
+
+            for (int i = 0; i < parsers.length; i++) {
+                final DwmlParser parser = parsers[i];
+                ForecastBatch forecasts = parser.parse(new ByteArrayInputStream(document),
+                        new ParseStats());
+                if (forecasts.size() != expected) {
+                    throw new IllegalStateException(names[i] + " found " + forecasts.size()
+                            + " forecasts in " + days + "-day document, expected " + expected);
+                }
+
+                report(days, hazards, document.length, names[i], new BenchmarkRunner.Producer() {
+                    public Object produce() throws Exception {
+                        return parser.parse(new ByteArrayInputStream(document), new ParseStats());
+                    }
+                });
+            }
+
+            ForecastBatch parsed = new MapDwmlParser().parse(
+                    new ByteArrayInputStream(document), new ParseStats());
+            final Map<String, List<Forecast>> layouts = DwmlFixtures.toLayoutMap(parsed);
+            report(days, hazards, document.length, "flattenForecasts",
+                    new BenchmarkRunner.Producer() {
+                        public Object produce() throws Exception {
+                            return MapDwmlParser.flattenForecasts(layouts);
+                        }
+                    });
+        }
+    }
+
+    private static void report(int days, int hazards, int bytes, String stage,
+            final BenchmarkRunner.Producer producer) throws Exception {
+        long kept = BenchmarkRunner.measureRetained(producer);
+        BenchmarkRunner.Result result = BenchmarkRunner.run(new BenchmarkRunner.Task() {
+            public void run() throws Exception {
+                producer.produce();
+            }
+        });
+        double micros = 1e6 / result.opsPerSec;
+        System.out.println(String.format("%d\t%d\t%d\t%s\t%.1f\t%.2f\t%d\t%d\t%d\t%d", days,
+                hazards, bytes, stage, micros, micros / days, result.bytesPerOp,
+                result.bytesPerOp / days, kept, kept / days));
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Small HTTP/1.1 server standing in for the NOAA webservice, so the refresh
+ * pipeline can be measured without touching weather.gov. Point
+ * {@link WebserviceHelper#setEndpoint(String)} at {@link #getEndpoint()}.
+ * <p>
+ * Requests to {@link #PATH} are answered with {@link DwmlFixtures#EXAMPLE_RESPONSE}
+ * when four days are asked for, and with a {@link DwmlGenerator} document
+ * seeded by location otherwise. A <code>listLatLon</code> query gets a
+ * multi-point document with one copy of the parameters for each point.
+ * <p>
+ * Latency, bandwidth and the rate of <code>503</code> errors can be changed
+ * at any time. Connections are kept alive, and bodies are gzipped for
+ * clients that ask.
+ */
+class StandInServer implements Runnable {
+    /**
+     * Path the real webservice answers forecast queries on.
+     */
+    static final String PATH = "/forecasts/xml/sample_products/browser_interface/ndfdBrowserClientByDay.php";
+
+    private static final int CHUNK_BYTES = 1024;
+
+    private final ServerSocket mServer;
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            // Workers blocked reading idle keep-alive connections shouldn't
+            // hold the VM open
+            Thread thread = new Thread(runnable, "StandInServer-worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<String, byte[]> mDocuments = new ConcurrentHashMap<String, byte[]>();
+    private final Random mRandom = new Random(0);
+
+    private volatile long mLatency = 0;
+    private volatile long mBandwidth = 0;
+    private volatile double mErrorRate = 0;
+    private volatile boolean mCacheable = false;
+    private volatile boolean mNotModified = false;
+    private volatile boolean mRunning = true;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mErrors = new AtomicInteger();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    /**
+     * Create a server on any free local port.
+     */
+    StandInServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Create a server on the given local port, or any free port if 0.
+     */
+    StandInServer(int port) throws IOException {
+        mServer = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Start accepting connections on a background thread.
+     */
+    StandInServer start() {
+        Thread thread = new Thread(this, "StandInServer");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stop accepting connections and close the listening socket.
+     */
+    void stop() {
+        mRunning = false;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * Scheme and host to hand to {@link WebserviceHelper#setEndpoint(String)}.
+     */
+    String getEndpoint() {
+        return "http://127.0.0.1:" + mServer.getLocalPort();
+    }
+
+    /**
+     * Delay before answering each request, in milliseconds.
+     */
+    void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Most bytes per second to send on each connection, or 0 for no limit.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Fraction of requests, between 0 and 1, answered with a 503 error.
+     */
+    void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * If true, responses allow caching for an hour. Otherwise they're sent
+     * with <code>no-cache</code>, so every refresh reaches the server.
+     */
+    void setCacheable(boolean cacheable) {
+        mCacheable = cacheable;
+    }
+
+    /**
+     * If true, every request is answered with <code>304 Not Modified</code>
+     * whether or not it was conditional, like a misbehaving cache might.
+     */
+    void setNotModified(boolean notModified) {
+        mNotModified = notModified;
+    }
+
+    int getRequestCount() {
+        return mRequests.get();
+    }
+
+    int getErrorCount() {
+        return mErrors.get();
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void run() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServer.accept();
+                mConnections.incrementAndGet();
+                mWorkers.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Closed by stop(), or the connection failed before we saw it
+            }
+        }
+    }
+
+    /**
+     * Answer requests on the given connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (mRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+
+                String[] parts = requestLine.split(" ");
+                respond(out, (parts.length > 1) ? parts[1] : "/", headers);
+                out.flush();
+
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        } catch (InterruptedException e) {
+            // Server stopping
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String target, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        mRequests.incrementAndGet();
+        if (mLatency > 0) {
+            Thread.sleep(mLatency);
+        }
+
+        int query = target.indexOf('?');
+        String path = (query == -1) ? target : target.substring(0, query);
+        if (!PATH.equals(path)) {
+            writeResponse(out, "404 Not Found", "text/plain", null, "Not found".getBytes());
+            return;
+        }
+
+        boolean fail;
+        synchronized (mRandom) {
+            fail = mRandom.nextDouble() < mErrorRate;
+        }
+        if (fail) {
+            mErrors.incrementAndGet();
+            writeResponse(out, "503 Service Unavailable", "text/plain", null,
+                    "Try again later".getBytes());
+            return;
+        }
+
+        if (mNotModified) {
+            writeResponse(out, "304 Not Modified", "text/xml", null, new byte[0]);
+            return;
+        }
+
+        Map<String, String> params = parseQuery((query == -1) ? "" : target.substring(query + 1));
+        String acceptEncoding = headers.get("accept-encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        byte[] body = getDocument(params, gzip);
+        writeResponse(out, "200 OK", "text/xml", gzip ? "gzip" : null, body);
+    }
+
+    /**
+     * Return the document for the given query, building it on first use.
+     */
+    private byte[] getDocument(Map<String, String> params, boolean gzip) throws IOException {
+        String days = params.containsKey("numDays") ? params.get("numDays") : "4";
+        String points = params.get("listLatLon");
+        if (points == null) {
+            points = params.get("lat") + "," + params.get("lon");
+        }
+
+        String key = points + ":" + days + ":" + gzip;
+        byte[] body = mDocuments.get(key);
+        if (body == null) {
+            String[] latLons = points.trim().split("\\s+");
+            String document = buildDocument(latLons[0], Integer.parseInt(days));
+            if (params.containsKey("listLatLon")) {
+                document = multiPoint(document, latLons.length);
+            }
+
+            body = document.getBytes("UTF-8");
+            if (gzip) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream zip = new GZIPOutputStream(compressed);
+                zip.write(body);
+                zip.close();
+                body = compressed.toByteArray();
+            }
+            mDocuments.put(key, body);
+        }
+        return body;
+    }
+
+    private static String buildDocument(String latLon, int days) {
+        if (days == 4) {
+            return DwmlFixtures.EXAMPLE_RESPONSE;
+        }
+        return DwmlGenerator.generate(days, 1, latLon.hashCode());
+    }
+
+    /**
+     * Turn a single-point document into one covering the given number of
+     * points, repeating its location, link and parameters for each point
+     * while sharing its time-layouts.
+     */
+    static String multiPoint(String single, int points) {
+        String result = single;
+        String[] tags = new String[] { "location", "moreWeatherInformation", "parameters" };
+        for (String tag : tags) {
+            int start = result.indexOf("<" + tag);
+            int end = result.indexOf("</" + tag + ">", start) + tag.length() + 3;
+            String section = result.substring(start, end);
+
+            StringBuilder copies = new StringBuilder(section);
+            for (int i = 2; i <= points; i++) {
+                copies.append(section.replace(MultiPointDwmlParser.keyFor(0),
+                        MultiPointDwmlParser.keyFor(i - 1)));
+            }
+            result = result.substring(0, start) + copies + result.substring(end);
+        }
+        return result;
+    }
+
+    private void writeResponse(OutputStream out, String status, String contentType,
+            String contentEncoding, byte[] body) throws IOException, InterruptedException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (contentEncoding != null) {
+            head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        head.append("Cache-Control: ").append(mCacheable ? "max-age=3600" : "no-cache")
+                .append("\r\n");
+        head.append("Connection: keep-alive\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+
+        long bandwidth = mBandwidth;
+        for (int offset = 0; offset < body.length; offset += CHUNK_BYTES) {
+            int length = Math.min(CHUNK_BYTES, body.length - offset);
+            out.write(body, offset, length);
+            if (bandwidth > 0) {
+                out.flush();
+                Thread.sleep(length * 1000L / bandwidth);
+            }
+        }
+        mBytesSent.addAndGet(body.length);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Read a single CRLF-terminated line, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = builder.length();
+                if (length > 0 && builder.charAt(length - 1) == '\r') {
+                    builder.setLength(length - 1);
+                }
+                return builder.toString();
+            }
+            builder.append((char)c);
+        }
+        return (builder.length() > 0) ? builder.toString() : null;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Compare resolving tag names with {@link DwmlTagTable} against the chain of
+ * {@link String#equals(Object)} calls the event loop used before. Replays the
+ * tag name of every start and end tag event in the bundled sample and in a
+ * generated 30-day document, counting string comparisons per event and
+ * measuring throughput. Each name is copied before lookup, since the parser
+ * hands out a fresh string with no cached hash for every event.
+ */
+public class TagDispatchBenchmark {
+    private static final String[] CHAIN = new String[] {
+        DwmlTags.TAG_TEMPERATURE, DwmlTags.TAG_WEATHER, DwmlTags.TAG_HAZARDS,
+        DwmlTags.TAG_WEATHER_CONDITIONS, DwmlTags.TAG_HAZARD, DwmlTags.TAG_LAYOUT_KEY,
+        DwmlTags.TAG_START_VALID_TIME, DwmlTags.TAG_VALUE, DwmlTags.TAG_HAZARDTEXTURL,
+        DwmlTags.TAG_MOREWEATHERINFORMATION, DwmlTags.TAG_PARAMETERS,
+    };
+
+    public static void main(String[] args) throws Exception {
+        String[] documents = new String[] {
+            DwmlFixtures.EXAMPLE_RESPONSE, DwmlGenerator.generate(30, 16, 0),
+        };
+
+        List<String> found = new ArrayList<String>();
+        for (String document : documents) {
+            XmlPullParser xpp = PullDwmlParser.newPullParser();
+            xpp.setInput(new StringReader(document));
+            int eventType;
+            while ((eventType = xpp.next()) != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG || eventType == XmlPullParser.END_TAG) {
+                    found.add(xpp.getName());
+                }
+            }
+        }
+
+        final char[][] names = new char[found.size()][];
+        long chainCompares = 0;
+        long tableCompares = 0;
+        for (int i = 0; i < names.length; i++) {
+            String name = found.get(i);
+            names[i] = name.toCharArray();
+            chainCompares += chainCompares(name);
+            tableCompares += (DwmlTagTable.lookup(name) != DwmlTagTable.CODE_OTHER) ? 1 : 0;
+        }
+
+        System.out.println(String.format("%d tag events", names.length));
+        System.out.println(String.format("%-40s %12.2f compares/event", "chained equals",
+                (double)chainCompares / names.length));
+        System.out.println(String.format("%-40s %12.2f compares/event", "DwmlTagTable",
+                (double)tableCompares / names.length));
+
+        BenchmarkRunner.measure("chained equals", new BenchmarkRunner.Task() {
+            int mSink;
+
+            public void run() throws Exception {
+                for (char[] name : names) {
+                    mSink += chainLookup(new String(name));
+                }
+            }
+        });
+        BenchmarkRunner.measure("DwmlTagTable.lookup", new BenchmarkRunner.Task() {
+            int mSink;
+
+            public void run() throws Exception {
+                for (char[] name : names) {
+                    mSink += DwmlTagTable.lookup(new String(name));
+                }
+            }
+        });
+    }
+
+    private static int chainLookup(String name) {
+        for (int i = 0; i < CHAIN.length; i++) {
+            if (CHAIN[i].equals(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int chainCompares(String name) {
+        int index = chainLookup(name);
+        return (index == 0) ? CHAIN.length : index;
+    }
+}
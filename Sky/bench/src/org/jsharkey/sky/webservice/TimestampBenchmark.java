@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.format.Time;
+
+/**
+ * Compare {@link DwmlTimestamp} against the original parsing path, which
+ * copied each value through a {@link SpannableStringBuilder} before handing it
+ * to {@link Time#parse3339(String)}. The original path needs the Android
+ * runtime, so it's skipped when running on a desktop VM.
+ */
+public class TimestampBenchmark {
+    private static final String[] SAMPLES = new String[] {
+        "2009-03-22T06:00:00-07:00",
+        "2009-03-22T18:00:00-07:00",
+        "2009-03-23T06:00:00-07:00",
+        "2009-03-25T18:00:00-05:00",
+        "2009-12-31T23:00:00-10:00",
+        "2010-01-01T00:00:00Z",
+    };
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner.measure("DwmlTimestamp.parse", new BenchmarkRunner.Task() {
+            public void run() throws Exception {
+                for (String sample : SAMPLES) {
+                    DwmlTimestamp.parse(sample);
+                }
+            }
+        });
+
+        try {
+            final Editable editable = new SpannableStringBuilder();
+            final Time time = new Time();
+            BenchmarkRunner.measure("Time.parse3339 (original)", new BenchmarkRunner.Task() {
+                public void run() throws Exception {
+                    for (String sample : SAMPLES) {
+                        editable.clear();
+                        editable.append(sample);
+                        editable.insert(19, ".000");
+                        time.parse3339(editable.toString());
+                        time.toMillis(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            System.out.println("Original path needs the Android runtime, skipped");
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.jsharkey.sky;
 
+import org.jsharkey.sky.webservice.ForecastSnapshot;
+
 import android.appwidget.AppWidgetManager;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
@@ -84,6 +86,19 @@ public class ForecastProvider extends ContentProvider {
         public static final String CONFIGURED = "configured";
 
         public static final int CONFIGURED_TRUE = 1;
+
+        /**
+         * <code>ETag</code> returned with the last forecast response parsed
+         * for this widget, sent back to make the next request conditional.
+         */
+        public static final String ETAG = "etag";
+
+        /**
+         * <code>Last-Modified</code> returned with the last forecast response
+         * parsed for this widget, sent back to make the next request
+         * conditional.
+         */
+        public static final String LAST_MODIFIED = "lastModified";
     }
 
     public static class AppWidgets implements BaseColumns, AppWidgetsColumns {
@@ -166,8 +181,9 @@ public class ForecastProvider extends ContentProvider {
 
         private static final int VER_ORIGINAL = 2;
         private static final int VER_ADD_METAR = 3;
+        private static final int VER_ADD_VALIDATORS = 4;
 
-        private static final int DATABASE_VERSION = VER_ADD_METAR;
+        private static final int DATABASE_VERSION = VER_ADD_VALIDATORS;
 
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -183,7 +199,9 @@ public class ForecastProvider extends ContentProvider {
                     + AppWidgetsColumns.UNITS + " INTEGER,"
                     + AppWidgetsColumns.LAST_UPDATED + " INTEGER,"
                     + AppWidgetsColumns.COUNTRY_CODE + " TEXT,"
-                    + AppWidgetsColumns.CONFIGURED + " INTEGER);");
+                    + AppWidgetsColumns.CONFIGURED + " INTEGER,"
+                    + AppWidgetsColumns.ETAG + " TEXT,"
+                    + AppWidgetsColumns.LAST_MODIFIED + " TEXT);");
 
             db.execSQL("CREATE TABLE " + TABLE_FORECASTS + " ("
                     + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -207,6 +225,12 @@ public class ForecastProvider extends ContentProvider {
                     db.execSQL("ALTER TABLE " + TABLE_APPWIDGETS + " ADD COLUMN "
                             + AppWidgetsColumns.METAR_STATION + " TEXT");
                     version = VER_ADD_METAR;
+                case VER_ADD_METAR:
+                    db.execSQL("ALTER TABLE " + TABLE_APPWIDGETS + " ADD COLUMN "
+                            + AppWidgetsColumns.ETAG + " TEXT");
+                    db.execSQL("ALTER TABLE " + TABLE_APPWIDGETS + " ADD COLUMN "
+                            + AppWidgetsColumns.LAST_MODIFIED + " TEXT");
+                    version = VER_ADD_VALIDATORS;
             }
             
             if (version != DATABASE_VERSION) {
@@ -239,6 +263,7 @@ public class ForecastProvider extends ContentProvider {
                 count = db.delete(TABLE_APPWIDGETS, BaseColumns._ID + "=" + appWidgetId, null);
                 count += db.delete(TABLE_FORECASTS, ForecastsColumns.APPWIDGET_ID + "="
                         + appWidgetId, null);
+                ForecastSnapshot.delete(getContext(), appWidgetId);
                 break;
             }
             case APPWIDGETS_FORECASTS: {
@@ -16,8 +16,14 @@
 
 package org.jsharkey.sky;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.jsharkey.sky.ForecastProvider.AppWidgets;
 import org.jsharkey.sky.ForecastProvider.AppWidgetsColumns;
@@ -44,9 +50,10 @@ import android.widget.RemoteViews;
 
 /**
  * Background service to build any requested widget updates. Uses a single
- * background thread to walk through an update queue, querying
- * {@link WebserviceHelper} as needed to fill database. Also handles scheduling
- * of future updates, usually in 6-hour increments.
+ * background thread to walk through an update queue, starting
+ * {@link WebserviceHelper} queries as needed to fill database so that slow
+ * queries overlap, then pushing each widget once its query finishes. Also
+ * handles scheduling of future updates, usually in 6-hour increments.
  */
 public class UpdateService extends Service implements Runnable {
     private static final String TAG = "UpdateService";
@@ -115,6 +122,13 @@ public class UpdateService extends Service implements Runnable {
      */
     private static Queue<Integer> sAppWidgetIds = new LinkedList<Integer>();
 
+    /**
+     * Widgets queued by {@link #ACTION_UPDATE_ALL} that should first be
+     * refreshed together through a single batch query. You <b>must</b> access
+     * through {@link #requestBatchUpdate(int[])} or {@link #getBatchUpdate()}.
+     */
+    private static List<Integer> sBatchIds = new ArrayList<Integer>();
+
     /**
      * Request updates for the given widgets. Will only queue them up, you are
      * still responsible for starting a processing thread if needed, usually by
@@ -128,6 +142,33 @@ public class UpdateService extends Service implements Runnable {
         }
     }
 
+    /**
+     * Request updates for the given widgets, fetching forecasts for all of
+     * them in a single batch query before they're processed one at a time.
+     */
+    public static void requestBatchUpdate(int[] appWidgetIds) {
+        synchronized (sLock) {
+            for (int appWidgetId : appWidgetIds) {
+                sBatchIds.add(appWidgetId);
+            }
+        }
+        requestUpdate(appWidgetIds);
+    }
+
+    /**
+     * Take any widgets waiting for a batch query, leaving none behind.
+     */
+    private static int[] getBatchUpdate() {
+        synchronized (sLock) {
+            int[] appWidgetIds = new int[sBatchIds.size()];
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                appWidgetIds[i] = sBatchIds.get(i);
+            }
+            sBatchIds.clear();
+            return appWidgetIds;
+        }
+    }
+
     /**
      * Peek if we have more updates to perform. This method is special because
      * it assumes you're calling from the update thread, and that you will
@@ -170,8 +211,8 @@ public class UpdateService extends Service implements Runnable {
         if (ACTION_UPDATE_ALL.equals(intent.getAction())) {
             Log.d(TAG, "Requested UPDATE_ALL action");
             AppWidgetManager manager = AppWidgetManager.getInstance(this);
-            requestUpdate(manager.getAppWidgetIds(new ComponentName(this, MedAppWidget.class)));
-            requestUpdate(manager.getAppWidgetIds(new ComponentName(this, TinyAppWidget.class)));
+            requestBatchUpdate(manager.getAppWidgetIds(new ComponentName(this, MedAppWidget.class)));
+            requestBatchUpdate(manager.getAppWidgetIds(new ComponentName(this, TinyAppWidget.class)));
         }
 
         // Only start processing thread if not already running
@@ -195,60 +236,78 @@ public class UpdateService extends Service implements Runnable {
         long now = System.currentTimeMillis();
 
         while (hasMoreUpdates()) {
-            int appWidgetId = getNextUpdate();
-            Uri appWidgetUri = ContentUris.withAppendedId(AppWidgets.CONTENT_URI, appWidgetId);
+            // Refresh widgets from any full update together before walking them
+            int[] batchIds = getBatchUpdate();
+            if (batchIds.length > 0) {
+                updateBatch(resolver, batchIds, now);
+            }
 
-            // Check if widget is configured, and if we need to update cache
-            Cursor cursor = null;
-            boolean isConfigured = false;
-            boolean shouldUpdate = false;
+            // Start forecast queries for everything queued so far, so slow
+            // round trips overlap instead of waiting on each other
+            Map<Integer, Future<Void>> pending = new LinkedHashMap<Integer, Future<Void>>();
+            int appWidgetId;
+            while ((appWidgetId = getNextUpdate()) != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                if (pending.containsKey(appWidgetId)) {
+                    // Already updating this widget during this pass
+                    continue;
+                }
 
-            try {
-                cursor = resolver.query(appWidgetUri, PROJECTION_APPWIDGETS, null, null, null);
-                if (cursor != null && cursor.moveToFirst()) {
-                    isConfigured = cursor.getInt(COL_CONFIGURED) == AppWidgetsColumns.CONFIGURED_TRUE;
+                Uri appWidgetUri = ContentUris.withAppendedId(AppWidgets.CONTENT_URI, appWidgetId);
 
-                    long lastUpdated = cursor.getLong(COL_LAST_UPDATED);
-                    long deltaMinutes = (now - lastUpdated) / DateUtils.MINUTE_IN_MILLIS;
-                    Log.d(TAG, "Delta since last forecast update is " + deltaMinutes + " min");
-                    shouldUpdate = (Math.abs(now - lastUpdated) > FORECAST_CACHE_THROTTLE);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
+                // Check if widget is configured, and if we need to update cache
+                Cursor cursor = null;
+                boolean isConfigured = false;
+                boolean shouldUpdate = false;
 
-            if (!isConfigured) {
-                // Skip this update if not configured yet
-                Log.d(TAG, "Not configured yet, so skipping update");
-                continue;
-            } else if (shouldUpdate) {
-                // Last update is outside throttle window, so update again
                 try {
-                    WebserviceHelper.updateForecasts(this, appWidgetUri, FORECAST_DAYS);
-                } catch (ParseException e) {
-                    Log.e(TAG, "Problem parsing forecast", e);
+                    cursor = resolver.query(appWidgetUri, PROJECTION_APPWIDGETS, null, null, null);
+                    if (cursor != null && cursor.moveToFirst()) {
+                        isConfigured = cursor.getInt(COL_CONFIGURED) == AppWidgetsColumns.CONFIGURED_TRUE;
+
+                        long lastUpdated = cursor.getLong(COL_LAST_UPDATED);
+                        long deltaMinutes = (now - lastUpdated) / DateUtils.MINUTE_IN_MILLIS;
+                        Log.d(TAG, "Delta since last forecast update is " + deltaMinutes + " min");
+                        shouldUpdate = (Math.abs(now - lastUpdated) > FORECAST_CACHE_THROTTLE);
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
                 }
-            }
 
-            // Process this update through the correct provider
-            AppWidgetProviderInfo info = appWidgetManager.getAppWidgetInfo(appWidgetId);
-            String providerName = info.provider.getClassName();
-            RemoteViews updateViews = null;
-
-            if (providerName.equals(MedAppWidget.class.getName())) {
-                updateViews = MedAppWidget.buildUpdate(this, appWidgetUri);
-            } else if (providerName.equals(TinyAppWidget.class.getName())) {
-                updateViews = TinyAppWidget.buildUpdate(this, appWidgetUri);
+                if (!isConfigured) {
+                    // Skip this update if not configured yet
+                    Log.d(TAG, "Not configured yet, so skipping update");
+                    continue;
+                } else if (shouldUpdate) {
+                    // Last update is outside throttle window, so update again
+                    pending.put(appWidgetId, WebserviceHelper.updateForecastsAsync(this,
+                            appWidgetUri, FORECAST_DAYS));
+                } else {
+                    pending.put(appWidgetId, null);
+                }
             }
 
-            // Push this update to surface
-            if (updateViews != null) {
-                appWidgetManager.updateAppWidget(appWidgetId, updateViews);
+            // Push each widget once its forecasts are in, in the order queued
+            for (Map.Entry<Integer, Future<Void>> entry : pending.entrySet()) {
+                Future<Void> update = entry.getValue();
+                if (update != null) {
+                    try {
+                        update.get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Problem parsing forecast", e.getCause());
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "Interrupted waiting for forecast", e);
+                    }
+                }
+                pushUpdate(appWidgetManager, entry.getKey());
             }
         }
 
+        // Drop any pooled connections the webservice has likely closed
+        WebserviceHelper.closeIdleConnections();
+        Log.d(TAG, "Webservice diagnostics: " + WebserviceHelper.getDiagnostics());
+
         // Schedule next update alarm, usually just before a 6-hour block. This
         // triggers updates at roughly 5:50AM, 11:50AM, 5:50PM, and 11:50PM.
         Time time = new Time();
@@ -282,6 +341,66 @@ public class UpdateService extends Service implements Runnable {
         stopSelf();
     }
 
+    /**
+     * Fetch forecasts for every given widget that is configured and outside
+     * the throttle window using a single webservice query. Any widget this
+     * doesn't cover is still updated on its own when its turn comes.
+     */
+    private void updateBatch(ContentResolver resolver, int[] appWidgetIds, long now) {
+        List<Uri> appWidgetUris = new ArrayList<Uri>();
+        for (int appWidgetId : appWidgetIds) {
+            Uri appWidgetUri = ContentUris.withAppendedId(AppWidgets.CONTENT_URI, appWidgetId);
+
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(appWidgetUri, PROJECTION_APPWIDGETS, null, null, null);
+                if (cursor != null && cursor.moveToFirst()
+                        && cursor.getInt(COL_CONFIGURED) == AppWidgetsColumns.CONFIGURED_TRUE
+                        && Math.abs(now - cursor.getLong(COL_LAST_UPDATED)) > FORECAST_CACHE_THROTTLE) {
+                    appWidgetUris.add(appWidgetUri);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        // A single widget gains nothing, and keeps its conditional request
+        if (appWidgetUris.size() < 2) {
+            return;
+        }
+
+        try {
+            WebserviceHelper.updateForecasts(this,
+                    appWidgetUris.toArray(new Uri[appWidgetUris.size()]), FORECAST_DAYS);
+        } catch (ParseException e) {
+            Log.e(TAG, "Problem parsing batch forecast", e);
+        }
+    }
+
+    /**
+     * Build and push the current views for the given widget through the
+     * correct provider.
+     */
+    private void pushUpdate(AppWidgetManager appWidgetManager, int appWidgetId) {
+        Uri appWidgetUri = ContentUris.withAppendedId(AppWidgets.CONTENT_URI, appWidgetId);
+        AppWidgetProviderInfo info = appWidgetManager.getAppWidgetInfo(appWidgetId);
+        String providerName = info.provider.getClassName();
+        RemoteViews updateViews = null;
+
+        if (providerName.equals(MedAppWidget.class.getName())) {
+            updateViews = MedAppWidget.buildUpdate(this, appWidgetUri);
+        } else if (providerName.equals(TinyAppWidget.class.getName())) {
+            updateViews = TinyAppWidget.buildUpdate(this, appWidgetUri);
+        }
+
+        // Push this update to surface
+        if (updateViews != null) {
+            appWidgetManager.updateAppWidget(appWidgetId, updateViews);
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Runs queries against a {@link ForecastSource} on an {@link Executor}, so
+ * many slow round trips can be in flight at once instead of each blocking
+ * the caller in turn. Results are handed back through a {@link Future}, and
+ * optionally a {@link Callback} run on the executor thread.
+ */
+public class AsyncForecastSource {
+    /**
+     * Told about the outcome of a single query, from the thread that ran it.
+     */
+    public interface Callback {
+        /**
+         * The query finished. Forecasts are null when the webservice reported
+         * nothing changed since the given validators.
+         */
+        void onForecasts(ForecastBatch forecasts);
+
+        /**
+         * The query failed.
+         */
+        void onError(ParseException e);
+    }
+
+    private final ForecastSource mSource;
+    private final Executor mExecutor;
+
+    /**
+     * Run queries against the given source on the given executor.
+     */
+    public AsyncForecastSource(ForecastSource source, Executor executor) {
+        mSource = source;
+        mExecutor = executor;
+    }
+
+    /**
+     * Run queries against the given source on the shared executor from
+     * {@link WebserviceHelper#getExecutor()}. Once its queue is full, queries
+     * run on the calling thread instead, so don't start them from the UI
+     * thread.
+     */
+    public AsyncForecastSource(ForecastSource source) {
+        this(source, WebserviceHelper.getExecutor());
+    }
+
+    /**
+     * Start a query like
+     * {@link ForecastSource#getForecasts(double, double, int, CacheValidators)},
+     * returning immediately. The returned future throws an
+     * {@link ExecutionException} wrapping any {@link ParseException}. Any
+     * given validators must be left alone until the query finishes.
+     */
+    public Future<ForecastBatch> getForecasts(final double lat, final double lon,
+            final int days, final CacheValidators validators, final Callback callback) {
+        FutureTask<ForecastBatch> task = new FutureTask<ForecastBatch>(
+                new Callable<ForecastBatch>() {
+                    public ForecastBatch call() throws ParseException {
+                        return mSource.getForecasts(lat, lon, days, validators);
+                    }
+                }) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    callback.onForecasts(get());
+                } catch (InterruptedException e) {
+                    // Never blocks, since we're already done
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    callback.onError((cause instanceof ParseException) ? (ParseException)cause
+                            : new ParseException("Problem querying forecast source", cause));
+                }
+            }
+        };
+        mExecutor.execute(task);
+        return task;
+    }
+}
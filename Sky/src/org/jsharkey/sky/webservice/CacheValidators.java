@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * HTTP validators from the last response we parsed for a location, used to
+ * make a conditional request so the webservice can answer with
+ * <code>304 Not Modified</code> when nothing has changed.
+ * <p>
+ * A request fills in the validators from a fresh response, or marks them as
+ * {@link #isNotModified()} when the webservice confirmed our copy is current.
+ */
+public class CacheValidators {
+    private String mEtag;
+    private String mLastModified;
+    private boolean mNotModified = false;
+
+    /**
+     * Create validators from values previously stored for a location, either
+     * of which may be null.
+     */
+    public CacheValidators(String etag, String lastModified) {
+        mEtag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Value of the <code>ETag</code> header, or null.
+     */
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * Value of the <code>Last-Modified</code> header, or null.
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Return true if there is anything to send with a conditional request.
+     */
+    public boolean hasValidators() {
+        return mEtag != null || mLastModified != null;
+    }
+
+    /**
+     * Return true if the webservice reported that the response described by
+     * these validators hasn't changed, meaning nothing was downloaded.
+     */
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * Record the validators returned with a fresh response.
+     */
+    void update(String etag, String lastModified) {
+        mEtag = etag;
+        mLastModified = lastModified;
+        mNotModified = false;
+    }
+
+    /**
+     * Record that the webservice answered with <code>304 Not Modified</code>.
+     */
+    void setNotModified() {
+        mNotModified = true;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Tracks failures talking to a single host, and stops requests to it for a
+ * while once it keeps failing. This saves waking the radio for requests that
+ * are almost certain to fail while the webservice is down.
+ * <p>
+ * After {@link #getFailureThreshold()} failures in a row the breaker opens,
+ * refusing requests until its open interval passes. It then lets a single
+ * trial request through, which either closes it again or reopens it.
+ */
+public class CircuitBreaker {
+    /**
+     * Requests flow normally.
+     */
+    public static final int STATE_CLOSED = 0;
+
+    /**
+     * Requests are refused until the open interval passes.
+     */
+    public static final int STATE_OPEN = 1;
+
+    /**
+     * A single trial request is in flight to test the host.
+     */
+    public static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * Returned by {@link #allowRequest(long)} when the request must not be
+     * made.
+     */
+    public static final int PERMIT_REFUSED = 0;
+
+    /**
+     * Returned by {@link #allowRequest(long)} when the request may be made
+     * as usual.
+     */
+    public static final int PERMIT_NORMAL = 1;
+
+    /**
+     * Returned by {@link #allowRequest(long)} to the one caller whose request
+     * is the trial. It must end with {@link #recordSuccess()},
+     * {@link #recordFailure(long)} or {@link #recordAbandoned()}.
+     */
+    public static final int PERMIT_TRIAL = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenInterval;
+
+    private int mState = STATE_CLOSED;
+    private long mOpenedAt = 0;
+
+    private int mFailureCount = 0;
+    private int mTripCount = 0;
+    private int mRejectedCount = 0;
+    private int mRetryCount = 0;
+
+    /**
+     * Create a closed breaker.
+     *
+     * @param failureThreshold Failures in a row before the breaker opens.
+     * @param openInterval Milliseconds to refuse requests once open.
+     */
+    public CircuitBreaker(int failureThreshold, long openInterval) {
+        mFailureThreshold = failureThreshold;
+        mOpenInterval = openInterval;
+    }
+
+    /**
+     * Return whether a request may be made now, such as
+     * {@link #PERMIT_NORMAL}. Once the open interval has passed, this hands
+     * {@link #PERMIT_TRIAL} to exactly one caller, so it knows the trial is
+     * its own without checking the state again.
+     */
+    public synchronized int allowRequest(long now) {
+        switch (mState) {
+            case STATE_OPEN: {
+                if (now - mOpenedAt >= mOpenInterval) {
+                    mState = STATE_HALF_OPEN;
+                    return PERMIT_TRIAL;
+                }
+                mRejectedCount++;
+                return PERMIT_REFUSED;
+            }
+            case STATE_HALF_OPEN: {
+                mRejectedCount++;
+                return PERMIT_REFUSED;
+            }
+            default: {
+                return PERMIT_NORMAL;
+            }
+        }
+    }
+
+    /**
+     * Record a request that reached the host and got a usable answer.
+     */
+    public synchronized void recordSuccess() {
+        mState = STATE_CLOSED;
+        mFailureCount = 0;
+    }
+
+    /**
+     * Record a request that failed, opening the breaker if this was the
+     * trial request or one failure too many.
+     */
+    public synchronized void recordFailure(long now) {
+        mFailureCount++;
+        if (mState == STATE_HALF_OPEN || mFailureCount >= mFailureThreshold) {
+            if (mState != STATE_OPEN) {
+                mTripCount++;
+            }
+            mState = STATE_OPEN;
+            mOpenedAt = now;
+        }
+    }
+
+    /**
+     * Record that the trial request gave up without an answer from the host,
+     * such as when it was interrupted. The breaker goes back to open without
+     * restarting its interval, so the next request becomes the trial
+     * instead of the breaker staying half-open forever.
+     */
+    public synchronized void recordAbandoned() {
+        if (mState == STATE_HALF_OPEN) {
+            mState = STATE_OPEN;
+        }
+    }
+
+    /**
+     * Record that a failed request is about to be tried again.
+     */
+    public synchronized void recordRetry() {
+        mRetryCount++;
+    }
+
+    /**
+     * Current state, such as {@link #STATE_CLOSED}.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Failures in a row that trip this breaker.
+     */
+    public int getFailureThreshold() {
+        return mFailureThreshold;
+    }
+
+    /**
+     * Failures in a row since the last success.
+     */
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * Number of times this breaker has opened.
+     */
+    public synchronized int getTripCount() {
+        return mTripCount;
+    }
+
+    /**
+     * Number of requests refused while open.
+     */
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Number of requests tried again after a failure.
+     */
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String state = (mState == STATE_OPEN) ? "open"
+                : (mState == STATE_HALF_OPEN) ? "half-open" : "closed";
+        return "state=" + state + ", failures=" + mFailureCount + ", trips=" + mTripCount
+                + ", rejected=" + mRejectedCount + ", retries=" + mRetryCount;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Accumulates forecast details as they stream out of a DWML document. Each
+ * <code>time-layout</code> is resolved to a small integer slot when first
+ * seen, so parameter blocks can index straight into a per-slot
+ * {@link ForecastBatch} instead of looking up layout keys in a map.
+ * <p>
+ * When finished, forecasts are emitted already in time order with any alerts
+ * first, by merging the slots instead of sorting. This assumes each
+ * <code>time-layout</code> lists its <code>start-valid-time</code> values in
+ * ascending order, which NOAA always does.
+ */
+final class DwmlCollector {
+    /**
+     * Parameter blocks that we care about inside <code>parameters</code>.
+     */
+    static final int BLOCK_NONE = 0;
+    static final int BLOCK_MAXIMUM = 1;
+    static final int BLOCK_MINIMUM = 2;
+    static final int BLOCK_WEATHER = 3;
+    static final int BLOCK_HAZARDS = 4;
+
+    private static final int INITIAL_SLOTS = 4;
+    private static final int INITIAL_PERIODS = 8;
+
+    private int mSlotCount = 0;
+    private String[] mLayoutKeys = new String[INITIAL_SLOTS];
+    private long[][] mStarts = new long[INITIAL_SLOTS][];
+    private int[] mStartCounts = new int[INITIAL_SLOTS];
+    private ForecastBatch[] mPeriods = new ForecastBatch[INITIAL_SLOTS];
+
+    private String mDetailsUrl = null;
+
+    private int mSlot = -1;
+    private int mBlock = BLOCK_NONE;
+    private int mIndex = -1;
+
+    /**
+     * Bitmask of parameter blocks that haven't been read yet.
+     */
+    private int mOutstanding = (1 << BLOCK_MAXIMUM) | (1 << BLOCK_MINIMUM)
+            | (1 << BLOCK_WEATHER) | (1 << BLOCK_HAZARDS);
+
+    /**
+     * Find the slot assigned to the given layout key, assigning a new slot if
+     * this is the first time we've seen it.
+     */
+    private int resolveSlot(String layoutKey) {
+        for (int i = 0; i < mSlotCount; i++) {
+            if (mLayoutKeys[i].equals(layoutKey)) {
+                return i;
+            }
+        }
+
+        if (mSlotCount == mLayoutKeys.length) {
+            int size = mSlotCount * 2;
+            String[] layoutKeys = new String[size];
+            long[][] starts = new long[size][];
+            int[] startCounts = new int[size];
+            ForecastBatch[] periods = new ForecastBatch[size];
+            System.arraycopy(mLayoutKeys, 0, layoutKeys, 0, mSlotCount);
+            System.arraycopy(mStarts, 0, starts, 0, mSlotCount);
+            System.arraycopy(mStartCounts, 0, startCounts, 0, mSlotCount);
+            System.arraycopy(mPeriods, 0, periods, 0, mSlotCount);
+            mLayoutKeys = layoutKeys;
+            mStarts = starts;
+            mStartCounts = startCounts;
+            mPeriods = periods;
+        }
+
+        int slot = mSlotCount++;
+        mLayoutKeys[slot] = layoutKey;
+        mStarts[slot] = new long[INITIAL_PERIODS];
+        mPeriods[slot] = new ForecastBatch(INITIAL_PERIODS);
+        return slot;
+    }
+
+    /**
+     * Start collecting <code>start-valid-time</code> values for the
+     * <code>time-layout</code> with the given key.
+     */
+    void beginLayout(String layoutKey) {
+        mSlot = resolveSlot(layoutKey);
+        mBlock = BLOCK_NONE;
+        mIndex = -1;
+    }
+
+    /**
+     * Append a <code>start-valid-time</code> to the current layout.
+     */
+    void addValidStart(long validStart) {
+        if (mSlot == -1) {
+            return;
+        }
+
+        long[] starts = mStarts[mSlot];
+        int count = mStartCounts[mSlot];
+        if (count == starts.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(starts, 0, grown, 0, count);
+            mStarts[mSlot] = starts = grown;
+        }
+        starts[count] = validStart;
+        mStartCounts[mSlot] = count + 1;
+    }
+
+    /**
+     * Start a parameter block that refers to the given layout key.
+     *
+     * @param block Type of block, such as {@link #BLOCK_MAXIMUM}.
+     */
+    void beginBlock(int block, String layoutKey) {
+        mSlot = (layoutKey == null) ? -1 : resolveSlot(layoutKey);
+        mBlock = block;
+        mIndex = -1;
+    }
+
+    /**
+     * Finish the current parameter block, marking it as no longer
+     * outstanding.
+     */
+    void endBlock() {
+        mOutstanding &= ~(1 << mBlock);
+        mBlock = BLOCK_NONE;
+    }
+
+    /**
+     * Finish the <code>parameters</code> section, after which no further
+     * blocks will arrive.
+     */
+    void endParameters() {
+        mOutstanding = 0;
+        mBlock = BLOCK_NONE;
+    }
+
+    /**
+     * Return true once every parameter block we need has been read, meaning
+     * the rest of the document can be ignored.
+     */
+    boolean isComplete() {
+        return mOutstanding == 0;
+    }
+
+    /**
+     * Return the type of parameter block currently being collected.
+     */
+    int getBlock() {
+        return mBlock;
+    }
+
+    /**
+     * Return the periods of the current slot, making sure the given period
+     * exists.
+     */
+    private ForecastBatch getPeriods(int index) {
+        ForecastBatch periods = mPeriods[mSlot];
+        periods.ensureIndex(index);
+        return periods;
+    }
+
+    /**
+     * Parse the text of a temperature <code>value</code>, ignoring any
+     * surrounding whitespace. Every engine uses this so they all reject bad
+     * values the same way.
+     */
+    static int parseTemperature(String text) throws ParseException {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid temperature " + text, e);
+        }
+    }
+
+    /**
+     * Add a temperature <code>value</code> to the current block, which is
+     * either {@link #BLOCK_MAXIMUM} or {@link #BLOCK_MINIMUM}.
+     */
+    void addTemperature(int value) {
+        if (mSlot == -1 || mBlock == BLOCK_NONE) {
+            return;
+        }
+
+        int index = ++mIndex;
+        ForecastBatch periods = getPeriods(index);
+        if (mBlock == BLOCK_MAXIMUM) {
+            periods.setTempHigh(index, value);
+            periods.setUrl(index, mDetailsUrl);
+        } else if (mBlock == BLOCK_MINIMUM) {
+            periods.setTempLow(index, value);
+        }
+    }
+
+    /**
+     * Add a <code>weather-conditions</code> summary to the current block.
+     */
+    void addConditions(String summary) {
+        if (mSlot == -1) {
+            return;
+        }
+        int index = ++mIndex;
+        getPeriods(index).setConditions(index, summary);
+    }
+
+    /**
+     * Add a <code>hazard</code> to the current block.
+     */
+    void addHazard(String phenomena, String significance) {
+        if (mSlot == -1) {
+            return;
+        }
+
+        int index = ++mIndex;
+        ForecastBatch periods = getPeriods(index);
+        periods.setAlert(index, true);
+        periods.setConditions(index, phenomena + " " + significance);
+    }
+
+    /**
+     * Attach a <code>hazardTextURL</code> to the most recent hazard.
+     */
+    void setHazardUrl(String url) {
+        if (mSlot == -1 || mIndex == -1) {
+            return;
+        }
+        getPeriods(mIndex).setUrl(mIndex, url);
+    }
+
+    /**
+     * Set the <code>moreWeatherInformation</code> link used for any
+     * forecasts that follow.
+     */
+    void setDetailsUrl(String url) {
+        mDetailsUrl = url;
+    }
+
+    /**
+     * Collect all forecasts with valid conditions, returning them in time
+     * order with any alerts first.
+     */
+    ForecastBatch finish() {
+        int total = 0;
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            ForecastBatch periods = mPeriods[slot];
+            for (int i = 0; i < periods.size(); i++) {
+                if (periods.hasConditions(i)) {
+                    total++;
+                }
+            }
+        }
+
+        ForecastBatch flat = new ForecastBatch(total);
+        int[] cursors = new int[mSlotCount];
+        merge(flat, cursors, true);
+        merge(flat, cursors, false);
+        return flat;
+    }
+
+    /**
+     * Return the valid time of the given period in a slot, taken from the
+     * matching <code>start-valid-time</code> of its layout.
+     */
+    private long getValidStart(int slot, int index) {
+        return (index < mStartCounts[slot]) ? mStarts[slot][index] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Merge forecasts across all slots into the given batch in time order,
+     * picking either only alerts or only non-alerts.
+     */
+    private void merge(ForecastBatch flat, int[] cursors, boolean alerts) {
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            cursors[slot] = nextMatching(slot, 0, alerts);
+        }
+
+        while (true) {
+            int bestSlot = -1;
+            long bestStart = Long.MAX_VALUE;
+            for (int slot = 0; slot < mSlotCount; slot++) {
+                int cursor = cursors[slot];
+                if (cursor == -1) {
+                    continue;
+                }
+                long validStart = getValidStart(slot, cursor);
+                if (bestSlot == -1 || validStart < bestStart) {
+                    bestSlot = slot;
+                    bestStart = validStart;
+                }
+            }
+
+            if (bestSlot == -1) {
+                break;
+            }
+            int cursor = cursors[bestSlot];
+            flat.append(mPeriods[bestSlot], cursor, bestStart);
+            cursors[bestSlot] = nextMatching(bestSlot, cursor + 1, alerts);
+        }
+    }
+
+    /**
+     * Find the next period in the given slot, starting at the given index,
+     * that has valid conditions and matches the requested alert state.
+     * Returns -1 when none remain.
+     */
+    private int nextMatching(int slot, int start, boolean alerts) {
+        ForecastBatch periods = mPeriods[slot];
+        for (int i = start; i < periods.size(); i++) {
+            if (periods.hasConditions(i) && periods.isAlert(i) == alerts) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
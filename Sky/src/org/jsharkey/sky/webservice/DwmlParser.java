@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.InputStream;
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Engine that turns a raw DWML response into a {@link ForecastBatch}.
+ * Implementations must be safe to share between threads, so that a single
+ * engine can be selected for a {@link NoaaSource} at runtime.
+ */
+public interface DwmlParser {
+
+    /**
+     * Parse the given response into a {@link ForecastBatch}, holding forecasts
+     * in time order with any alerts first. Counters describing the work performed are
+     * recorded into the given {@link ParseStats}.
+     */
+    public ForecastBatch parse(InputStream response, ParseStats stats) throws ParseException;
+
+}
@@ -0,0 +1,855 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Hand-written scanner that reads a DWML response directly from its raw bytes,
+ * skipping the charset decoding and general-purpose tokenizing done by
+ * {@code XmlPullParser}. Element and attribute names are matched against byte
+ * constants, and {@link String} objects are only built for the handful of
+ * values we actually keep. Timestamps and temperatures are parsed straight
+ * from the buffer.
+ * <p>
+ * Handles the UTF-8, US-ASCII and ISO-8859-1 documents returned by NOAA, as
+ * named by the XML declaration, and refuses any other encoding. Instances
+ * hold reusable buffers and aren't thread-safe, so use {@link #obtain()} to
+ * get one confined to the current thread.
+ */
+final class DwmlScanner {
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int TAG_OTHER = 0;
+    private static final int TAG_TEMPERATURE = 1;
+    private static final int TAG_WEATHER = 2;
+    private static final int TAG_HAZARDS = 3;
+    private static final int TAG_WEATHER_CONDITIONS = 4;
+    private static final int TAG_HAZARD = 5;
+    private static final int TAG_LAYOUT_KEY = 6;
+    private static final int TAG_START_VALID_TIME = 7;
+    private static final int TAG_VALUE = 8;
+    private static final int TAG_HAZARDTEXTURL = 9;
+    private static final int TAG_MOREWEATHERINFORMATION = 10;
+    private static final int TAG_PARAMETERS = 11;
+
+    private static final byte[][] TAG_NAMES = new byte[][] {
+        null,
+        ascii("temperature"),
+        ascii("weather"),
+        ascii("hazards"),
+        ascii("weather-conditions"),
+        ascii("hazard"),
+        ascii("layout-key"),
+        ascii("start-valid-time"),
+        ascii("value"),
+        ascii("hazardTextURL"),
+        ascii("moreWeatherInformation"),
+        ascii("parameters"),
+    };
+
+    private static final byte[][] SKIPPED_NAMES = new byte[DwmlTags.SKIPPED_TAGS.length + 1][];
+
+    static {
+        for (int i = 0; i < DwmlTags.SKIPPED_TAGS.length; i++) {
+            SKIPPED_NAMES[i + 1] = ascii(DwmlTags.SKIPPED_TAGS[i]);
+        }
+    }
+
+    private static final int ATTR_OTHER = 0;
+    private static final int ATTR_TIME_LAYOUT = 1;
+    private static final int ATTR_TYPE = 2;
+    private static final int ATTR_WEATHER_SUMMARY = 3;
+    private static final int ATTR_PHENOMENA = 4;
+    private static final int ATTR_SIGNIFICANCE = 5;
+
+    private static final byte[][] ATTR_NAMES = new byte[][] {
+        null,
+        ascii("time-layout"),
+        ascii("type"),
+        ascii("weather-summary"),
+        ascii("phenomena"),
+        ascii("significance"),
+    };
+
+    private static final byte[] TYPE_MAXIMUM = ascii("maximum");
+    private static final byte[] TYPE_MINIMUM = ascii("minimum");
+
+    private static final ThreadLocal<DwmlScanner> sScanner = new ThreadLocal<DwmlScanner>() {
+        @Override
+        protected DwmlScanner initialValue() {
+            return new DwmlScanner();
+        }
+    };
+
+    /**
+     * Return a scanner confined to the calling thread, reusing its buffers
+     * across parses.
+     */
+    static DwmlScanner obtain() {
+        return sScanner.get();
+    }
+
+    private final byte[] mBuf = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private InputStream mIn;
+
+    private byte[] mName = new byte[64];
+    private int mNameLength;
+
+    private byte[] mText = new byte[256];
+    private int mTextLength;
+
+    private final AsciiSequence mSequence = new AsciiSequence();
+
+    /**
+     * Attribute values captured from the most recent start tag.
+     */
+    private String mTimeLayout;
+    private int mBlockType;
+    private String mSummary;
+    private String mPhenomena;
+    private String mSignificance;
+
+    /**
+     * True when the XML declaration named ISO-8859-1, so each byte is one
+     * character, otherwise the document is UTF-8.
+     */
+    private boolean mLatin1;
+
+    private DwmlScanner() {
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Parse the given DWML response into a {@link ForecastBatch}, holding
+     * forecasts in time order with any alerts first.
+     *
+     * @param earlyExit If true, stop reading as soon as every parameter block
+     *            we need has been read.
+     */
+    ForecastBatch parse(InputStream in, ParseStats stats, boolean earlyExit)
+            throws ParseException {
+        DwmlCollector collector = new DwmlCollector();
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        mLatin1 = false;
+
+        try {
+            scan(collector, stats, earlyExit);
+        } catch (IOException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } finally {
+            mIn = null;
+            mTimeLayout = null;
+            mSummary = null;
+            mPhenomena = null;
+            mSignificance = null;
+        }
+
+        return collector.finish();
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mIn.read(mBuf, 0, mBuf.length);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuf[mPos++] & 0xff;
+    }
+
+    /**
+     * Push back the byte most recently returned from {@link #read()}.
+     */
+    private void unread() {
+        mPos--;
+    }
+
+    private int readRequired() throws IOException {
+        int c = read();
+        if (c == -1) {
+            throw new IOException("Unexpected end of document");
+        }
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isNameEnd(int c) {
+        return isWhitespace(c) || c == '>' || c == '/' || c == '=';
+    }
+
+    /**
+     * Main scanning loop, dispatching the values we care about into the given
+     * collector. Tags and text nodes that we dispatch are counted as
+     * processed events, and those inside skipped subtrees as skipped.
+     */
+    private void scan(DwmlCollector collector, ParseStats stats, boolean earlyExit)
+            throws IOException, ParseException {
+        // Tag whose text content we're currently interested in
+        int textTag = TAG_OTHER;
+
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') {
+                if (textTag != TAG_OTHER) {
+                    unread();
+                    readText();
+                    handleText(textTag, collector);
+                    stats.eventsProcessed++;
+                }
+                continue;
+            }
+
+            c = readRequired();
+            if (c == '/') {
+                int tag = lookup(TAG_NAMES, readName());
+                skipPast('>');
+                textTag = TAG_OTHER;
+                stats.eventsProcessed++;
+
+                if (isBlock(tag)) {
+                    collector.endBlock();
+                } else if (tag == TAG_PARAMETERS) {
+                    collector.endParameters();
+                }
+
+                if (earlyExit && collector.isComplete()) {
+                    stats.completedEarly = true;
+                    return;
+                }
+
+            } else if (c == '?') {
+                readProcessingInstruction();
+
+            } else if (c == '!') {
+                if (handleMarkup() && textTag != TAG_OTHER) {
+                    handleText(textTag, collector);
+                }
+
+            } else {
+                unread();
+                int length = readName();
+                int tag = lookup(TAG_NAMES, length);
+                textTag = TAG_OTHER;
+
+                if (tag == TAG_OTHER && lookup(SKIPPED_NAMES, length) != 0) {
+                    stats.eventsSkipped++;
+                    if (skipTag()) {
+                        stats.eventsSkipped++;
+                    } else {
+                        skipSubtree(stats);
+                    }
+                    continue;
+                }
+
+                boolean empty = readAttributes(tag);
+                handleStartTag(tag, collector);
+                stats.eventsProcessed += empty ? 2 : 1;
+                if (empty && isBlock(tag)) {
+                    collector.endBlock();
+                }
+                if (!empty && keepsText(tag)) {
+                    textTag = tag;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read an element or attribute name into {@link #mName}, returning its
+     * length.
+     */
+    private int readName() throws IOException {
+        mNameLength = 0;
+        int c;
+        while (!isNameEnd(c = readRequired())) {
+            if (mNameLength == mName.length) {
+                byte[] grown = new byte[mName.length * 2];
+                System.arraycopy(mName, 0, grown, 0, mNameLength);
+                mName = grown;
+            }
+            mName[mNameLength++] = (byte)c;
+        }
+        unread();
+        return mNameLength;
+    }
+
+    /**
+     * Find the given name in a table of constants, returning its index or zero
+     * when not found.
+     */
+    private int lookup(byte[][] names, int length) {
+        for (int i = 1; i < names.length; i++) {
+            byte[] name = names[i];
+            if (name.length == length && matches(mName, name, length)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(byte[] buf, byte[] name, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read all attributes of the current start tag, keeping only those needed
+     * for the given tag. Returns true if the tag was self-closing.
+     */
+    private boolean readAttributes(int tag) throws IOException {
+        mTimeLayout = null;
+        mBlockType = DwmlCollector.BLOCK_NONE;
+        mSummary = null;
+        mPhenomena = null;
+        mSignificance = null;
+
+        while (true) {
+            int c = readRequired();
+            if (isWhitespace(c)) {
+                continue;
+            } else if (c == '>') {
+                return false;
+            } else if (c == '/') {
+                skipPast('>');
+                return true;
+            }
+
+            unread();
+            int attr = lookup(ATTR_NAMES, readName());
+
+            // Skip over equals sign to opening quote
+            int quote;
+            while ((quote = readRequired()) != '"' && quote != '\'') {
+                if (!isWhitespace(quote) && quote != '=') {
+                    throw new IOException("Malformed attribute");
+                }
+            }
+
+            if (!wantsAttribute(tag, attr)) {
+                skipPast(quote);
+                continue;
+            }
+
+            readUntil(quote);
+            switch (attr) {
+                case ATTR_TIME_LAYOUT:
+                    mTimeLayout = decodeText();
+                    break;
+                case ATTR_TYPE:
+                    if (textEquals(TYPE_MAXIMUM)) {
+                        mBlockType = DwmlCollector.BLOCK_MAXIMUM;
+                    } else if (textEquals(TYPE_MINIMUM)) {
+                        mBlockType = DwmlCollector.BLOCK_MINIMUM;
+                    }
+                    break;
+                case ATTR_WEATHER_SUMMARY:
+                    mSummary = decodeText();
+                    break;
+                case ATTR_PHENOMENA:
+                    mPhenomena = decodeText();
+                    break;
+                case ATTR_SIGNIFICANCE:
+                    mSignificance = decodeText();
+                    break;
+            }
+        }
+    }
+
+    private static boolean wantsAttribute(int tag, int attr) {
+        switch (tag) {
+            case TAG_TEMPERATURE:
+                return attr == ATTR_TIME_LAYOUT || attr == ATTR_TYPE;
+            case TAG_WEATHER:
+            case TAG_HAZARDS:
+                return attr == ATTR_TIME_LAYOUT;
+            case TAG_WEATHER_CONDITIONS:
+                return attr == ATTR_WEATHER_SUMMARY;
+            case TAG_HAZARD:
+                return attr == ATTR_PHENOMENA || attr == ATTR_SIGNIFICANCE;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean keepsText(int tag) {
+        return tag >= TAG_LAYOUT_KEY && tag <= TAG_MOREWEATHERINFORMATION;
+    }
+
+    private static boolean isBlock(int tag) {
+        return tag == TAG_TEMPERATURE || tag == TAG_WEATHER || tag == TAG_HAZARDS;
+    }
+
+    private void handleStartTag(int tag, DwmlCollector collector) {
+        switch (tag) {
+            case TAG_TEMPERATURE:
+                collector.beginBlock(mBlockType, mTimeLayout);
+                break;
+            case TAG_WEATHER:
+                collector.beginBlock(DwmlCollector.BLOCK_WEATHER, mTimeLayout);
+                break;
+            case TAG_HAZARDS:
+                collector.beginBlock(DwmlCollector.BLOCK_HAZARDS, mTimeLayout);
+                break;
+            case TAG_WEATHER_CONDITIONS:
+                collector.addConditions(mSummary);
+                break;
+            case TAG_HAZARD:
+                collector.addHazard(mPhenomena, mSignificance);
+                break;
+        }
+    }
+
+    private void handleText(int tag, DwmlCollector collector)
+            throws IOException, ParseException {
+        switch (tag) {
+            case TAG_LAYOUT_KEY:
+                collector.beginLayout(decodeText());
+                break;
+            case TAG_START_VALID_TIME:
+                collector.addValidStart(DwmlTimestamp.parse(trimmedText()));
+                break;
+            case TAG_VALUE: {
+                int block = collector.getBlock();
+                if (block == DwmlCollector.BLOCK_MAXIMUM || block == DwmlCollector.BLOCK_MINIMUM) {
+                    collector.addTemperature(parseInt());
+                }
+                break;
+            }
+            case TAG_HAZARDTEXTURL:
+                collector.setHazardUrl(decodeText());
+                break;
+            case TAG_MOREWEATHERINFORMATION:
+                collector.setDetailsUrl(decodeText());
+                break;
+        }
+    }
+
+    /**
+     * Handle markup starting with "&lt;!", such as comments, declarations or
+     * CDATA sections. Returns true if a CDATA section was read into
+     * {@link #mText}.
+     */
+    private boolean handleMarkup() throws IOException {
+        int c = readRequired();
+        if (c == '-') {
+            // Comment, which ends with "-->"
+            readRequired();
+            int dashes = 0;
+            while (true) {
+                c = readRequired();
+                if (c == '>' && dashes >= 2) {
+                    return false;
+                }
+                dashes = (c == '-') ? dashes + 1 : 0;
+            }
+        } else if (c == '[') {
+            // CDATA section, which ends with "]]>"
+            skipPast('[');
+            mTextLength = 0;
+            int brackets = 0;
+            while (true) {
+                c = readRequired();
+                if (c == '>' && brackets >= 2) {
+                    mTextLength -= 2;
+                    return true;
+                }
+                brackets = (c == ']') ? brackets + 1 : 0;
+                appendText(c);
+            }
+        } else {
+            // Declaration, such as DOCTYPE, which we don't expand
+            int depth = 1;
+            while (depth > 0) {
+                c = readRequired();
+                if (c == '<') {
+                    depth++;
+                } else if (c == '>') {
+                    depth--;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Skip the remainder of the current start tag, returning true if it was
+     * self-closing.
+     */
+    private boolean skipTag() throws IOException {
+        int last = -1;
+        int c;
+        while ((c = readRequired()) != '>') {
+            if (c == '"' || c == '\'') {
+                skipPast(c);
+            }
+            last = c;
+        }
+        return last == '/';
+    }
+
+    /**
+     * Pass over the children of the element whose start tag was just read,
+     * through its matching end tag, without looking at any names or values.
+     */
+    private void skipSubtree(ParseStats stats) throws IOException {
+        int depth = 1;
+        boolean inText = false;
+        while (depth > 0) {
+            int c = readRequired();
+            if (c != '<') {
+                if (!inText) {
+                    inText = true;
+                    stats.eventsSkipped++;
+                }
+                continue;
+            }
+
+            inText = false;
+            c = readRequired();
+            if (c == '/') {
+                skipPast('>');
+                depth--;
+                stats.eventsSkipped++;
+            } else if (c == '?') {
+                skipPast('?', '>');
+            } else if (c == '!') {
+                handleMarkup();
+            } else {
+                stats.eventsSkipped++;
+                if (skipTag()) {
+                    stats.eventsSkipped++;
+                } else {
+                    depth++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a processing instruction following its '&lt;?', picking up the
+     * document encoding if it's the XML declaration.
+     */
+    private void readProcessingInstruction() throws IOException, ParseException {
+        mTextLength = 0;
+        int last = -1;
+        int c;
+        while (!((c = readRequired()) == '>' && last == '?')) {
+            appendText(c);
+            last = c;
+        }
+
+        // Declaration is always ASCII, whatever encoding it names
+        String instruction = new String(mText, 0, mTextLength - 1, "ISO-8859-1");
+        if (!instruction.startsWith("xml") || instruction.length() < 4
+                || !isWhitespace(instruction.charAt(3))) {
+            return;
+        }
+
+        int index = instruction.indexOf("encoding");
+        if (index == -1) {
+            return;
+        }
+        index = instruction.indexOf('=', index);
+        int quote = (index == -1) ? -1 : instruction.indexOf('"', index);
+        int single = (index == -1) ? -1 : instruction.indexOf('\'', index);
+        if (quote == -1 || (single != -1 && single < quote)) {
+            quote = single;
+        }
+        int end = (quote == -1) ? -1 : instruction.indexOf(instruction.charAt(quote), quote + 1);
+        if (end == -1) {
+            throw new ParseException("Malformed XML declaration");
+        }
+
+        String encoding = instruction.substring(quote + 1, end).trim().toUpperCase();
+        if (encoding.equals("ISO-8859-1") || encoding.equals("ISO_8859-1")
+                || encoding.equals("LATIN1")) {
+            mLatin1 = true;
+        } else if (encoding.equals("UTF-8") || encoding.equals("UTF8")
+                || encoding.equals("US-ASCII") || encoding.equals("ASCII")) {
+            mLatin1 = false;
+        } else {
+            throw new ParseException("Unsupported XML encoding " + encoding);
+        }
+    }
+
+    private void skipPast(int end) throws IOException {
+        while (readRequired() != end) {
+        }
+    }
+
+    private void skipPast(int first, int second) throws IOException {
+        int last = -1;
+        int c;
+        while (!((c = readRequired()) == second && last == first)) {
+            last = c;
+        }
+    }
+
+    private void appendText(int c) {
+        if (mTextLength == mText.length) {
+            byte[] grown = new byte[mText.length * 2];
+            System.arraycopy(mText, 0, grown, 0, mTextLength);
+            mText = grown;
+        }
+        mText[mTextLength++] = (byte)c;
+    }
+
+    /**
+     * Read text content up to the next '&lt;' into {@link #mText}, expanding
+     * any entities along the way.
+     */
+    private void readText() throws IOException {
+        mTextLength = 0;
+        int c;
+        while ((c = read()) != -1 && c != '<') {
+            if (c == '&') {
+                readEntity();
+            } else {
+                appendText(c);
+            }
+        }
+        if (c == '<') {
+            unread();
+        }
+    }
+
+    /**
+     * Read a quoted attribute value up to the given quote into {@link #mText},
+     * expanding any entities along the way.
+     */
+    private void readUntil(int quote) throws IOException {
+        mTextLength = 0;
+        int c;
+        while ((c = readRequired()) != quote) {
+            if (c == '&') {
+                readEntity();
+            } else {
+                appendText(c);
+            }
+        }
+    }
+
+    /**
+     * Read an entity reference following an '&amp;', appending its expanded
+     * value into {@link #mText} in the document encoding. Character
+     * references may be decimal or hex with either case of 'x'.
+     */
+    private void readEntity() throws IOException {
+        int start = mTextLength;
+        int c;
+        while ((c = readRequired()) != ';') {
+            appendText(c);
+            if (mTextLength - start > 10) {
+                throw new IOException("Malformed entity");
+            }
+        }
+
+        int length = mTextLength - start;
+        int value = -1;
+        if (length > 1 && mText[start] == '#') {
+            boolean hex = (mText[start + 1] == 'x' || mText[start + 1] == 'X');
+            int radix = hex ? 16 : 10;
+            int first = start + (hex ? 2 : 1);
+            if (first == mTextLength) {
+                throw new IOException("Malformed character reference");
+            }
+
+            value = 0;
+            for (int i = first; i < mTextLength; i++) {
+                int digit = Character.digit(mText[i], radix);
+                if (digit == -1) {
+                    throw new IOException("Malformed character reference");
+                }
+                value = (value * radix) + digit;
+            }
+            if (value == 0 || value > 0x10ffff || (value >= 0xd800 && value <= 0xdfff)) {
+                throw new IOException("Invalid character reference");
+            }
+        } else if (entityEquals(start, length, "amp")) {
+            value = '&';
+        } else if (entityEquals(start, length, "lt")) {
+            value = '<';
+        } else if (entityEquals(start, length, "gt")) {
+            value = '>';
+        } else if (entityEquals(start, length, "quot")) {
+            value = '"';
+        } else if (entityEquals(start, length, "apos")) {
+            value = '\'';
+        }
+
+        mTextLength = start;
+        if (value < 0) {
+            throw new IOException("Unknown entity");
+        } else if (mLatin1) {
+            if (value > 0xff) {
+                throw new IOException("Character reference outside ISO-8859-1");
+            }
+            appendText(value);
+        } else if (value < 0x80) {
+            appendText(value);
+        } else if (value < 0x800) {
+            appendText(0xc0 | (value >> 6));
+            appendText(0x80 | (value & 0x3f));
+        } else if (value < 0x10000) {
+            appendText(0xe0 | (value >> 12));
+            appendText(0x80 | ((value >> 6) & 0x3f));
+            appendText(0x80 | (value & 0x3f));
+        } else {
+            appendText(0xf0 | (value >> 18));
+            appendText(0x80 | ((value >> 12) & 0x3f));
+            appendText(0x80 | ((value >> 6) & 0x3f));
+            appendText(0x80 | (value & 0x3f));
+        }
+    }
+
+    private boolean entityEquals(int start, int length, String name) {
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mText[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean textEquals(byte[] value) {
+        return mTextLength == value.length && matches(mText, value, mTextLength);
+    }
+
+    /**
+     * Build a {@link String} from the current contents of {@link #mText},
+     * decoded in the document encoding.
+     */
+    private String decodeText() throws IOException {
+        return new String(mText, 0, mTextLength, mLatin1 ? "ISO-8859-1" : "UTF-8");
+    }
+
+    /**
+     * Return a view of {@link #mText} with surrounding whitespace removed,
+     * without copying it.
+     */
+    private CharSequence trimmedText() {
+        int start = 0;
+        int end = mTextLength;
+        while (start < end && isWhitespace(mText[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(mText[end - 1])) {
+            end--;
+        }
+        return mSequence.set(mText, start, end - start);
+    }
+
+    /**
+     * Parse a signed decimal temperature from {@link #mText}, rejecting
+     * anything {@link DwmlCollector#parseTemperature(String)} would reject,
+     * including values that don't fit in an <code>int</code>.
+     */
+    private int parseInt() throws ParseException {
+        CharSequence text = trimmedText();
+        int length = text.length();
+
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = (text.charAt(0) == '-');
+            i++;
+        }
+        if (i == length) {
+            throw new ParseException("Invalid temperature " + text);
+        }
+
+        // Accumulate negatively, since the negative range is one larger
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Invalid temperature " + text);
+            }
+            int digit = c - '0';
+            if (value < (limit + digit) / 10) {
+                throw new ParseException("Invalid temperature " + text);
+            }
+            value = (value * 10) - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Reusable {@link CharSequence} view over a region of ASCII bytes.
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private byte[] mBytes;
+        private int mStart;
+        private int mLength;
+
+        AsciiSequence set(byte[] bytes, int start, int length) {
+            mBytes = bytes;
+            mStart = start;
+            mLength = length;
+            return this;
+        }
+
+        public char charAt(int index) {
+            return (char)(mBytes[mStart + index] & 0xff);
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence().set(mBytes, mStart + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(mLength);
+            for (int i = 0; i < mLength; i++) {
+                builder.append(charAt(i));
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Precomputed table mapping DWML tag names to small integer codes, so event
+ * loops can switch on a code instead of comparing each name against every
+ * interesting tag. Lookups hash into an open-addressed table and only compare
+ * strings once both length and hash match, so names we don't care about
+ * usually cost no string comparisons at all.
+ */
+final class DwmlTagTable implements DwmlTags {
+    static final int CODE_OTHER = 0;
+    static final int CODE_TEMPERATURE = 1;
+    static final int CODE_WEATHER = 2;
+    static final int CODE_HAZARDS = 3;
+    static final int CODE_WEATHER_CONDITIONS = 4;
+    static final int CODE_HAZARD = 5;
+    static final int CODE_LAYOUT_KEY = 6;
+    static final int CODE_START_VALID_TIME = 7;
+    static final int CODE_VALUE = 8;
+    static final int CODE_HAZARDTEXTURL = 9;
+    static final int CODE_MOREWEATHERINFORMATION = 10;
+    static final int CODE_PARAMETERS = 11;
+
+    /**
+     * Code shared by every name in {@link DwmlTags#SKIPPED_TAGS}.
+     */
+    static final int CODE_SKIPPED = 12;
+
+    private static final int TABLE_SIZE = 64;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /** Tag names, indexed by the slot they were stored in plus one. */
+    private static final String[] sNames = new String[TABLE_SIZE + 1];
+    private static final int[] sHashes = new int[TABLE_SIZE + 1];
+    private static final int[] sCodes = new int[TABLE_SIZE + 1];
+
+    /** Open-addressed slots, holding an index into the arrays above. */
+    private static final int[] sSlots = new int[TABLE_SIZE];
+
+    private static int sCount = 0;
+
+    static {
+        put(TAG_TEMPERATURE, CODE_TEMPERATURE);
+        put(TAG_WEATHER, CODE_WEATHER);
+        put(TAG_HAZARDS, CODE_HAZARDS);
+        put(TAG_WEATHER_CONDITIONS, CODE_WEATHER_CONDITIONS);
+        put(TAG_HAZARD, CODE_HAZARD);
+        put(TAG_LAYOUT_KEY, CODE_LAYOUT_KEY);
+        put(TAG_START_VALID_TIME, CODE_START_VALID_TIME);
+        put(TAG_VALUE, CODE_VALUE);
+        put(TAG_HAZARDTEXTURL, CODE_HAZARDTEXTURL);
+        put(TAG_MOREWEATHERINFORMATION, CODE_MOREWEATHERINFORMATION);
+        put(TAG_PARAMETERS, CODE_PARAMETERS);
+        for (String skipped : SKIPPED_TAGS) {
+            put(skipped, CODE_SKIPPED);
+        }
+    }
+
+    private DwmlTagTable() {
+    }
+
+    private static int slotFor(int hash) {
+        return (hash ^ (hash >>> 16)) & TABLE_MASK;
+    }
+
+    private static void put(String name, int code) {
+        int entry = ++sCount;
+        sNames[entry] = name;
+        sHashes[entry] = name.hashCode();
+        sCodes[entry] = code;
+
+        int slot = slotFor(sHashes[entry]);
+        while (sSlots[slot] != 0) {
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        sSlots[slot] = entry;
+    }
+
+    /**
+     * Return the code for the given tag name, or {@link #CODE_OTHER} if it's
+     * not a tag we handle.
+     */
+    static int lookup(String name) {
+        if (name == null) {
+            return CODE_OTHER;
+        }
+
+        int hash = name.hashCode();
+        int length = name.length();
+        int slot = slotFor(hash);
+        int entry;
+        while ((entry = sSlots[slot]) != 0) {
+            String candidate = sNames[entry];
+            if (sHashes[entry] == hash && candidate.length() == length
+                    && candidate.equals(name)) {
+                return sCodes[entry];
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return CODE_OTHER;
+    }
+
+    /**
+     * Return true if the given code marks a tag whose text content we keep.
+     */
+    static boolean isTextTag(int code) {
+        return code >= CODE_LAYOUT_KEY && code <= CODE_MOREWEATHERINFORMATION;
+    }
+
+    /**
+     * Return true if the given code marks a parameter block that ends with
+     * {@link DwmlCollector#endBlock()}.
+     */
+    static boolean isBlockTag(int code) {
+        return code == CODE_TEMPERATURE || code == CODE_WEATHER || code == CODE_HAZARDS;
+    }
+}
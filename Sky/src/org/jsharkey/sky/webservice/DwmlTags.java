@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Various XML tags and attributes present in DWML responses.
+ */
+interface DwmlTags {
+    public static final String TAG_TEMPERATURE = "temperature";
+    public static final String TAG_WEATHER = "weather";
+    public static final String TAG_POP = "probability-of-precipitation";
+    public static final String TAG_HAZARDS = "hazards";
+    public static final String TAG_WEATHER_CONDITIONS = "weather-conditions";
+    public static final String TAG_HAZARD = "hazard";
+    public static final String TAG_LAYOUT_KEY = "layout-key";
+    public static final String TAG_START_VALID_TIME = "start-valid-time";
+    public static final String TAG_VALUE = "value";
+    public static final String TAG_HAZARDTEXTURL = "hazardTextURL";
+    public static final String TAG_MOREWEATHERINFORMATION = "moreWeatherInformation";
+    public static final String TAG_PARAMETERS = "parameters";
+
+    public static final String ATTR_TIME_LAYOUT = "time-layout";
+    public static final String ATTR_TYPE = "type";
+    public static final String ATTR_WEATHER_SUMMARY = "weather-summary";
+    public static final String ATTR_PHENOMENA = "phenomena";
+    public static final String ATTR_SIGNIFICANCE = "significance";
+    public static final String ATTR_APPLICABLE_LOCATION = "applicable-location";
+
+    public static final String TYPE_MAXIMUM = "maximum";
+    public static final String TYPE_MINIMUM = "minimum";
+
+    /**
+     * Subtrees that never contain anything we keep, which the parsers pass
+     * over by depth without dispatching their events.
+     */
+    public static final String[] SKIPPED_TAGS = new String[] {
+        "head", "location", "name", "end-valid-time", "conditions-icon", TAG_POP,
+    };
+}
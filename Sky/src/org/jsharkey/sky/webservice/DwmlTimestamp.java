@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Parser for the fixed-format timestamps found in DWML responses, such as
+ * "2009-03-23T18:00:00-07:00". Works directly against the incoming character
+ * data without allocating, and holds no mutable state, so it's safe to call
+ * from several update threads at once.
+ * <p>
+ * Accepts an optional fractional seconds part, and either a "Z" or a numeric
+ * "+hh:mm" zone designator, which covers everything RFC 3339 allows.
+ */
+final class DwmlTimestamp {
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+    private static final long HOUR_IN_MILLIS = 60 * MINUTE_IN_MILLIS;
+    private static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    /**
+     * Length of the "2009-03-23T18:00:00" prefix shared by all timestamps.
+     */
+    private static final int LENGTH_DATE_TIME = 19;
+
+    /**
+     * Cumulative days before the start of each month in a non-leap year.
+     */
+    private static final int[] DAYS_BEFORE_MONTH = {
+        0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334
+    };
+
+    private DwmlTimestamp() {
+    }
+
+    /**
+     * Parse the given timestamp into a Unix timestamp in milliseconds.
+     */
+    static long parse(CharSequence raw) throws ParseException {
+        final int length = raw.length();
+        if (length < LENGTH_DATE_TIME + 1) {
+            throw new ParseException("Timestamp too short: " + raw);
+        }
+
+        expect(raw.charAt(4) == '-' && raw.charAt(7) == '-' && raw.charAt(10) == 'T'
+                && raw.charAt(13) == ':' && raw.charAt(16) == ':', raw);
+
+        int year = digits(raw, 0, 4);
+        int month = digits(raw, 5, 2);
+        int day = digits(raw, 8, 2);
+        int hour = digits(raw, 11, 2);
+        int minute = digits(raw, 14, 2);
+        int second = digits(raw, 17, 2);
+
+        // Skip over any fractional seconds, keeping only milliseconds
+        int i = LENGTH_DATE_TIME;
+        int millis = 0;
+        if (raw.charAt(i) == '.') {
+            int scale = 100;
+            for (i++; i < length && isDigit(raw.charAt(i)); i++) {
+                millis += (raw.charAt(i) - '0') * scale;
+                scale /= 10;
+            }
+        }
+
+        // Read zone designator, which must end the timestamp
+        expect(i < length, raw);
+        long offset;
+        char zone = raw.charAt(i);
+        if (zone == 'Z' || zone == 'z') {
+            expect(i + 1 == length, raw);
+            offset = 0;
+        } else {
+            expect((zone == '+' || zone == '-') && (i + 6 == length || i + 5 == length), raw);
+            int zoneHour = digits(raw, i + 1, 2);
+            int zoneMinute;
+            if (i + 6 == length) {
+                expect(raw.charAt(i + 3) == ':', raw);
+                zoneMinute = digits(raw, i + 4, 2);
+            } else {
+                zoneMinute = digits(raw, i + 3, 2);
+            }
+            offset = zoneHour * HOUR_IN_MILLIS + zoneMinute * MINUTE_IN_MILLIS;
+            if (zone == '-') {
+                offset = -offset;
+            }
+        }
+
+        return toMillis(year, month, day, hour, minute, second, millis, raw) - offset;
+    }
+
+    /**
+     * Combine the given UTC calendar fields into a Unix timestamp, validating
+     * their ranges along the way.
+     */
+    private static long toMillis(int year, int month, int day, int hour, int minute,
+            int second, int millis, CharSequence raw) throws ParseException {
+        expect(month >= 1 && month <= 12, raw);
+        expect(day >= 1 && day <= 31, raw);
+        expect(hour <= 24 && minute <= 59 && second <= 60, raw);
+
+        // Count days since epoch, including leap days of earlier years
+        int priorYears = year - 1;
+        long days = 365L * (year - 1970)
+                + (priorYears / 4 - priorYears / 100 + priorYears / 400)
+                - (1969 / 4 - 1969 / 100 + 1969 / 400)
+                + DAYS_BEFORE_MONTH[month - 1] + (day - 1);
+        if (month > 2 && isLeapYear(year)) {
+            days++;
+        }
+
+        return days * DAY_IN_MILLIS + hour * HOUR_IN_MILLIS + minute * MINUTE_IN_MILLIS
+                + second * 1000L + millis;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Read a fixed-width run of decimal digits starting at the given offset.
+     */
+    private static int digits(CharSequence raw, int start, int count) throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = raw.charAt(i);
+            expect(isDigit(c), raw);
+            value = (value * 10) + (c - '0');
+        }
+        return value;
+    }
+
+    private static void expect(boolean condition, CharSequence raw) throws ParseException {
+        if (!condition) {
+            throw new ParseException("Invalid timestamp: " + raw);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+import android.util.Log;
+
+/**
+ * {@link ForecastSource} that tries several sources in priority order under a
+ * single overall deadline, returning the first usable answer. The next source
+ * is started as soon as the one before it fails, or is hedged alongside it
+ * once it has been running for a given delay without answering. Only chain
+ * sources that can answer for the locations queried, since every hedge is
+ * another request.
+ * <p>
+ * Attempts run on {@link WebserviceHelper#getAttemptExecutor()}, apart from
+ * the executor running updates, so a chain started from an update still
+ * hedges. They never retry past the deadline, and attempts still running
+ * once there's an answer, or once the deadline passes, have their requests
+ * aborted. A chain started from inside another chain's attempt runs its
+ * attempts one after another on the calling thread instead, since waiting
+ * on queued work from inside that executor could leave every thread waiting.
+ * <p>
+ * Each attempt gets its own copy of any {@link CacheValidators}, and only the
+ * winning attempt's validators are copied back, so sources never see each
+ * other's validators. Only the first source is sent validators, since stored
+ * forecasts only ever match it.
+ */
+public class FallbackSource implements ForecastSource {
+    private static final String TAG = "FallbackSource";
+
+    private final ForecastSource[] mSources;
+    private final long mDeadline;
+    private final long mHedgeDelay;
+
+    /**
+     * Create a chain across the given sources, highest priority first. Every
+     * query gives up after the given deadline, and the next source is hedged
+     * in whenever the running ones have gone the given delay without
+     * answering. Both are in milliseconds.
+     */
+    public FallbackSource(long deadline, long hedgeDelay, ForecastSource... sources) {
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("Need at least one source");
+        }
+        mSources = sources;
+        mDeadline = deadline;
+        mHedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Single query against one source in the chain.
+     */
+    private static class Attempt implements Callable<ForecastBatch> {
+        final ForecastSource source;
+        final CacheValidators validators;
+        final RequestControl control;
+        final double lat;
+        final double lon;
+        final int days;
+
+        Attempt(ForecastSource source, CacheValidators validators, long deadline, double lat,
+                double lon, int days) {
+            this.source = source;
+            this.validators = validators;
+            this.control = new RequestControl(deadline);
+            this.lat = lat;
+            this.lon = lon;
+            this.days = days;
+        }
+
+        public ForecastBatch call() throws ParseException {
+            WebserviceHelper.setRequestControl(control);
+            try {
+                ForecastBatch forecasts = source.getForecasts(lat, lon, days, validators);
+                if (validators != null && validators.isNotModified()) {
+                    return null;
+                }
+                if (forecasts == null || forecasts.size() == 0) {
+                    throw new ParseException("No forecasts found from "
+                            + source.getClass().getSimpleName());
+                }
+                return forecasts;
+            } finally {
+                WebserviceHelper.setRequestControl(null);
+            }
+        }
+
+        /**
+         * Stop this attempt, whether it's queued, waiting, or reading.
+         */
+        void cancel(Future<ForecastBatch> future) {
+            control.abort();
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Throws when every source failed, or none answered before the deadline.
+     */
+    public ForecastBatch getForecasts(double lat, double lon, int days,
+            CacheValidators validators) throws ParseException {
+        long deadline = System.currentTimeMillis() + mDeadline;
+        if (WebserviceHelper.isAttemptThread()) {
+            return getForecastsInline(deadline, lat, lon, days, validators);
+        }
+
+        CompletionService<ForecastBatch> completion = new ExecutorCompletionService<ForecastBatch>(
+                WebserviceHelper.getAttemptExecutor());
+        Map<Future<ForecastBatch>, Attempt> running = new HashMap<Future<ForecastBatch>, Attempt>();
+
+        int next = 0;
+        ParseException failure = null;
+        try {
+            while (true) {
+                if (running.isEmpty() && next < mSources.length) {
+                    submit(completion, running, next++, deadline, lat, lon, days, validators);
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                boolean canHedge = next < mSources.length;
+                Future<ForecastBatch> done = completion.poll(
+                        canHedge ? Math.min(mHedgeDelay, remaining) : remaining,
+                        TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (canHedge && System.currentTimeMillis() < deadline) {
+                        Log.d(TAG, "Hedging with " + mSources[next].getClass().getSimpleName()
+                                + " after " + mHedgeDelay + "ms");
+                        submit(completion, running, next++, deadline, lat, lon, days,
+                                validators);
+                    }
+                    continue;
+                }
+
+                Attempt attempt = running.remove(done);
+                try {
+                    ForecastBatch forecasts = done.get();
+                    copyValidators(attempt.validators, validators);
+                    return forecasts;
+                } catch (ExecutionException e) {
+                    failure = asParseException(e.getCause());
+                    Log.w(TAG, attempt.source.getClass().getSimpleName() + " failed: "
+                            + failure.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ParseException("Interrupted waiting for forecasts", e);
+        } finally {
+            // Nobody wants the answers still coming
+            for (Map.Entry<Future<ForecastBatch>, Attempt> entry : running.entrySet()) {
+                entry.getValue().cancel(entry.getKey());
+            }
+        }
+
+        throw newFailure(next >= mSources.length && running.isEmpty(), failure);
+    }
+
+    /**
+     * Try each source in turn on the calling thread until one answers or the
+     * deadline passes. Without another thread to watch the clock, a request
+     * already under way may run past the deadline, but won't retry past it.
+     */
+    private ForecastBatch getForecastsInline(long deadline, double lat, double lon, int days,
+            CacheValidators validators) throws ParseException {
+        ParseException failure = null;
+        for (int i = 0; i < mSources.length; i++) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw newFailure(false, failure);
+            }
+
+            Attempt attempt = newAttempt(i, deadline, lat, lon, days, validators);
+            try {
+                ForecastBatch forecasts = attempt.call();
+                copyValidators(attempt.validators, validators);
+                return forecasts;
+            } catch (ParseException e) {
+                failure = e;
+                Log.w(TAG, attempt.source.getClass().getSimpleName() + " failed: "
+                        + failure.getMessage());
+            }
+        }
+        throw newFailure(true, failure);
+    }
+
+    private ParseException newFailure(boolean allFailed, ParseException failure) {
+        if (allFailed && failure != null) {
+            return new ParseException("Every forecast source failed", failure);
+        }
+        return new ParseException("No forecast source answered within " + mDeadline + "ms",
+                failure);
+    }
+
+    private Attempt newAttempt(int index, long deadline, double lat, double lon, int days,
+            CacheValidators validators) {
+        CacheValidators copy = null;
+        if (validators != null) {
+            copy = (index == 0) ? new CacheValidators(validators.getEtag(),
+                    validators.getLastModified()) : new CacheValidators(null, null);
+        }
+        return new Attempt(mSources[index], copy, deadline, lat, lon, days);
+    }
+
+    private void submit(CompletionService<ForecastBatch> completion,
+            Map<Future<ForecastBatch>, Attempt> running, int index, long deadline, double lat,
+            double lon, int days, CacheValidators validators) {
+        Attempt attempt = newAttempt(index, deadline, lat, lon, days, validators);
+        running.put(completion.submit(attempt), attempt);
+    }
+
+    private static void copyValidators(CacheValidators from, CacheValidators to) {
+        if (from == null || to == null) {
+            return;
+        }
+        if (from.isNotModified()) {
+            to.setNotModified();
+        } else {
+            to.update(from.getEtag(), from.getLastModified());
+        }
+    }
+
+    private static ParseException asParseException(Throwable cause) {
+        if (cause instanceof ParseException) {
+            return (ParseException)cause;
+        }
+        return new ParseException("Problem querying forecast source", cause);
+    }
+
+    /**
+     * Describe this chain by its sources in priority order, which
+     * {@link ForecastCoalescer} uses to tell chains apart.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(getClass().getName()).append('[');
+        for (int i = 0; i < mSources.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(mSources[i].getClass().getName());
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.List;
+
+/**
+ * Set of forecasts stored as parallel primitive arrays, one entry per
+ * period, instead of as individual {@link Forecast} objects. Conditions and
+ * URLs are interned into a small per-batch table and referenced by index,
+ * since the same strings repeat across most periods.
+ * <p>
+ * Missing temperatures are reported as {@link Integer#MIN_VALUE}, matching
+ * what {@link Forecast} and the stored forecasts have always used.
+ */
+public final class ForecastBatch {
+    /**
+     * Index used for periods without a string.
+     */
+    static final int NO_STRING = -1;
+
+    /**
+     * Stored in place of a temperature that hasn't been set, or that doesn't
+     * fit in a short.
+     */
+    private static final short NO_TEMP = Short.MIN_VALUE;
+
+    private static final int INITIAL_PERIODS = 8;
+    private static final int INITIAL_STRINGS = 8;
+
+    private int mCount = 0;
+    private long[] mValidStart;
+    private short[] mTempHigh;
+    private short[] mTempLow;
+    private long[] mAlerts;
+    private short[] mConditions;
+    private short[] mUrl;
+
+    private int mStringCount = 0;
+    private String[] mStrings = new String[INITIAL_STRINGS];
+
+    /**
+     * Create an empty batch.
+     */
+    public ForecastBatch() {
+        this(INITIAL_PERIODS);
+    }
+
+    /**
+     * Create an empty batch with room for the given number of periods before
+     * it needs to grow.
+     */
+    public ForecastBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mValidStart = new long[capacity];
+        mTempHigh = new short[capacity];
+        mTempLow = new short[capacity];
+        mAlerts = new long[(capacity + 63) >>> 6];
+        mConditions = new short[capacity];
+        mUrl = new short[capacity];
+    }
+
+    /**
+     * Build a batch holding the given forecasts, in the same order.
+     */
+    static ForecastBatch fromForecasts(List<Forecast> forecasts) {
+        ForecastBatch batch = new ForecastBatch(forecasts.size());
+        for (Forecast forecast : forecasts) {
+            int index = batch.add();
+            batch.setAlert(index, forecast.alert);
+            batch.setValidStart(index, forecast.validStart);
+            batch.setTempHigh(index, forecast.tempHigh);
+            batch.setTempLow(index, forecast.tempLow);
+            batch.setConditions(index, forecast.conditions);
+            batch.setUrl(index, forecast.url);
+        }
+        return batch;
+    }
+
+    /**
+     * Number of periods in this batch.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Start of the given period, in milliseconds since the epoch.
+     */
+    public long getValidStart(int index) {
+        return mValidStart[index];
+    }
+
+    /**
+     * High temperature for the given period, or {@link Integer#MIN_VALUE}.
+     */
+    public int getTempHigh(int index) {
+        return toTemp(mTempHigh[index]);
+    }
+
+    /**
+     * Low temperature for the given period, or {@link Integer#MIN_VALUE}.
+     */
+    public int getTempLow(int index) {
+        return toTemp(mTempLow[index]);
+    }
+
+    /**
+     * True if the given period is a hazard rather than a daily forecast.
+     */
+    public boolean isAlert(int index) {
+        return (mAlerts[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Summary of conditions for the given period, or null.
+     */
+    public String getConditions(int index) {
+        return getString(mConditions[index]);
+    }
+
+    /**
+     * Link to more details about the given period, or null.
+     */
+    public String getUrl(int index) {
+        return getString(mUrl[index]);
+    }
+
+    /**
+     * Return true if the given period has non-empty conditions, which is
+     * what makes it worth keeping.
+     */
+    boolean hasConditions(int index) {
+        int string = mConditions[index];
+        return string != NO_STRING && mStrings[string].length() > 0;
+    }
+
+    /**
+     * Return the earliest valid time across all periods, or
+     * {@link Long#MAX_VALUE} if the batch is empty.
+     */
+    public long getEarliestValidStart() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            earliest = Math.min(earliest, mValidStart[i]);
+        }
+        return earliest;
+    }
+
+    /**
+     * Append an empty period, returning its index.
+     */
+    int add() {
+        if (mCount == mValidStart.length) {
+            grow(mCount * 2);
+        }
+
+        int index = mCount++;
+        mValidStart[index] = Long.MIN_VALUE;
+        mTempHigh[index] = NO_TEMP;
+        mTempLow[index] = NO_TEMP;
+        mConditions[index] = NO_STRING;
+        mUrl[index] = NO_STRING;
+        setAlert(index, false);
+        return index;
+    }
+
+    /**
+     * Append empty periods until the given index exists.
+     */
+    void ensureIndex(int index) {
+        if (index >= mValidStart.length) {
+            grow(Math.max(index + 1, mValidStart.length * 2));
+        }
+        while (mCount <= index) {
+            add();
+        }
+    }
+
+    /**
+     * Append a copy of a period from another batch, stamped with the given
+     * valid time. Returns the index of the new period.
+     */
+    int append(ForecastBatch source, int sourceIndex, long validStart) {
+        int index = add();
+        mValidStart[index] = validStart;
+        mTempHigh[index] = source.mTempHigh[sourceIndex];
+        mTempLow[index] = source.mTempLow[sourceIndex];
+        setAlert(index, source.isAlert(sourceIndex));
+        mConditions[index] = intern(source.getConditions(sourceIndex));
+        mUrl[index] = intern(source.getUrl(sourceIndex));
+        return index;
+    }
+
+    void setValidStart(int index, long validStart) {
+        mValidStart[index] = validStart;
+    }
+
+    void setTempHigh(int index, int temp) {
+        mTempHigh[index] = fromTemp(temp);
+    }
+
+    void setTempLow(int index, int temp) {
+        mTempLow[index] = fromTemp(temp);
+    }
+
+    void setAlert(int index, boolean alert) {
+        if (alert) {
+            mAlerts[index >>> 6] |= (1L << index);
+        } else {
+            mAlerts[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    void setConditions(int index, String conditions) {
+        mConditions[index] = intern(conditions);
+    }
+
+    void setUrl(int index, String url) {
+        mUrl[index] = intern(url);
+    }
+
+    /**
+     * Number of unique strings held in the table for this batch.
+     */
+    int getStringCount() {
+        return mStringCount;
+    }
+
+    /**
+     * Return the unique string stored at the given table index.
+     */
+    String getString(int string) {
+        return (string == NO_STRING) ? null : mStrings[string];
+    }
+
+    /**
+     * Return the table index of the conditions for the given period, or
+     * {@link #NO_STRING}.
+     */
+    int getConditionsIndex(int index) {
+        return mConditions[index];
+    }
+
+    /**
+     * Return the table index of the URL for the given period, or
+     * {@link #NO_STRING}.
+     */
+    int getUrlIndex(int index) {
+        return mUrl[index];
+    }
+
+    /**
+     * Find the given string in our table, adding it if this is the first
+     * time we've seen it. Tables hold a handful of strings, so a linear scan
+     * that tries identity first beats hashing.
+     */
+    private short intern(String string) {
+        if (string == null) {
+            return NO_STRING;
+        }
+
+        for (int i = 0; i < mStringCount; i++) {
+            if (mStrings[i] == string) {
+                return (short)i;
+            }
+        }
+        for (int i = 0; i < mStringCount; i++) {
+            if (mStrings[i].equals(string)) {
+                return (short)i;
+            }
+        }
+
+        if (mStringCount == Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many unique strings in batch");
+        }
+        if (mStringCount == mStrings.length) {
+            String[] grown = new String[mStringCount * 2];
+            System.arraycopy(mStrings, 0, grown, 0, mStringCount);
+            mStrings = grown;
+        }
+        mStrings[mStringCount] = string;
+        return (short)mStringCount++;
+    }
+
+    private void grow(int capacity) {
+        long[] validStart = new long[capacity];
+        short[] tempHigh = new short[capacity];
+        short[] tempLow = new short[capacity];
+        long[] alerts = new long[(capacity + 63) >>> 6];
+        short[] conditions = new short[capacity];
+        short[] url = new short[capacity];
+        System.arraycopy(mValidStart, 0, validStart, 0, mCount);
+        System.arraycopy(mTempHigh, 0, tempHigh, 0, mCount);
+        System.arraycopy(mTempLow, 0, tempLow, 0, mCount);
+        System.arraycopy(mAlerts, 0, alerts, 0, mAlerts.length);
+        System.arraycopy(mConditions, 0, conditions, 0, mCount);
+        System.arraycopy(mUrl, 0, url, 0, mCount);
+        mValidStart = validStart;
+        mTempHigh = tempHigh;
+        mTempLow = tempLow;
+        mAlerts = alerts;
+        mConditions = conditions;
+        mUrl = url;
+    }
+
+    private static short fromTemp(int temp) {
+        if (temp <= NO_TEMP || temp > Short.MAX_VALUE) {
+            return NO_TEMP;
+        }
+        return (short)temp;
+    }
+
+    private static int toTemp(short temp) {
+        return (temp == NO_TEMP) ? Integer.MIN_VALUE : temp;
+    }
+}
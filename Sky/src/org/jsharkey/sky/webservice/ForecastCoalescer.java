@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Shares a single fetch-and-parse between widgets asking for forecasts at the
+ * same point. Requests are keyed by source and by location quantized to
+ * {@link #QUANTUM} degrees, so a caller that arrives while a matching request
+ * is in flight waits for its result instead of repeating it. Finished results
+ * are kept for {@link #SHARE_WINDOW}, so back-to-back updates share too.
+ * <p>
+ * Since {@link CacheValidators} are kept per widget, a
+ * <code>304 Not Modified</code> result is only shared with callers that sent
+ * the same validators. Anyone else makes their own request.
+ */
+final class ForecastCoalescer {
+    /**
+     * Locations closer than this many degrees share a request, which is
+     * about a kilometer and well inside a single forecast grid cell.
+     */
+    static final double QUANTUM = 0.01;
+
+    /**
+     * How long a finished result is handed to later callers, in milliseconds.
+     */
+    static final long SHARE_WINDOW = 60 * 1000;
+
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    /**
+     * Fetch forecasts for the given point from the given source, sharing the
+     * result with any other caller asking for the same point. Behaves like
+     * {@link ForecastSource#getForecasts(double, double, int, CacheValidators)}.
+     */
+    ForecastBatch getForecasts(ForecastSource source, double lat, double lon, int days,
+            CacheValidators validators) throws ParseException {
+        String key = keyFor(source, lat, lon, days);
+        long now = System.currentTimeMillis();
+
+        Flight flight;
+        boolean leader = false;
+        synchronized (mFlights) {
+            pruneLocked(now);
+            flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight(validators);
+                mFlights.put(key, flight);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                ForecastBatch forecasts = source.getForecasts(lat, lon, days, validators);
+                flight.complete(forecasts, validators, null);
+                return forecasts;
+            } catch (ParseException e) {
+                abandon(key, flight, e);
+                throw e;
+            } catch (RuntimeException e) {
+                abandon(key, flight, new ParseException("Shared request failed", e));
+                throw e;
+            }
+        }
+
+        flight.await();
+        if (flight.mError != null) {
+            throw flight.mError;
+        }
+
+        if (flight.mNotModified) {
+            if (flight.sentSame(validators)) {
+                validators.setNotModified();
+                return null;
+            }
+            // Result only meant our data was current for another widget
+            return source.getForecasts(lat, lon, days, validators);
+        }
+
+        if (validators != null) {
+            validators.update(flight.mEtag, flight.mLastModified);
+        }
+        return flight.mForecasts;
+    }
+
+    /**
+     * Pass a failure to anyone already waiting on the given request, but let
+     * the next caller try again instead of sharing it.
+     */
+    private void abandon(String key, Flight flight, ParseException error) {
+        synchronized (mFlights) {
+            if (mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+        }
+        flight.complete(null, null, error);
+    }
+
+    /**
+     * Drop finished results older than {@link #SHARE_WINDOW}.
+     */
+    private void pruneLocked(long now) {
+        Iterator<Flight> iter = mFlights.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isExpired(now)) {
+                iter.remove();
+            }
+        }
+    }
+
+    static String keyFor(ForecastSource source, double lat, double lon, int days) {
+        // Chains of sources differ by what they chain, not by their class
+        String name = (source instanceof FallbackSource) ? source.toString()
+                : source.getClass().getName();
+        return name + ":" + Math.round(lat / QUANTUM) + ","
+                + Math.round(lon / QUANTUM) + ":" + days;
+    }
+
+    /**
+     * Single request for a point, either still running or finished.
+     */
+    private static class Flight {
+        private final String mSentEtag;
+        private final String mSentLastModified;
+        private final boolean mSentValidators;
+
+        private boolean mDone = false;
+        private long mCompleted;
+
+        private ForecastBatch mForecasts;
+        private boolean mNotModified;
+        private String mEtag;
+        private String mLastModified;
+        private ParseException mError;
+
+        Flight(CacheValidators sent) {
+            mSentValidators = (sent != null);
+            mSentEtag = (sent != null) ? sent.getEtag() : null;
+            mSentLastModified = (sent != null) ? sent.getLastModified() : null;
+        }
+
+        synchronized void complete(ForecastBatch forecasts, CacheValidators validators,
+                ParseException error) {
+            mForecasts = forecasts;
+            mError = error;
+            if (validators != null) {
+                mNotModified = validators.isNotModified();
+                mEtag = validators.getEtag();
+                mLastModified = validators.getLastModified();
+            }
+            mCompleted = System.currentTimeMillis();
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws ParseException {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ParseException("Interrupted waiting for shared request", e);
+                }
+            }
+        }
+
+        synchronized boolean isExpired(long now) {
+            return mDone && now - mCompleted > SHARE_WINDOW;
+        }
+
+        /**
+         * Return true if the given validators match those this request was
+         * made with.
+         */
+        boolean sentSame(CacheValidators validators) {
+            return validators != null && mSentValidators
+                    && equals(mSentEtag, validators.getEtag())
+                    && equals(mSentLastModified, validators.getLastModified());
+        }
+
+        private static boolean equals(String left, String right) {
+            return (left == null) ? right == null : left.equals(right);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Compact binary encoding of a parsed {@link ForecastBatch}, stored per
+ * widget when forecasts are ingested so they can be reloaded later without
+ * fetching or parsing XML again.
+ * <p>
+ * A snapshot is a fixed header followed by the string table of the batch,
+ * then one fixed-width record per forecast that refers to strings by index.
+ * Since the same details URL repeats on every daily forecast, each is stored
+ * once.
+ */
+public final class ForecastSnapshot {
+    private static final String TAG = "ForecastSnapshot";
+
+    /**
+     * Leading bytes of every snapshot, spelling "SKYF".
+     */
+    private static final int MAGIC = 0x534b5946;
+
+    /**
+     * Current encoding version. Snapshots written with any other version are
+     * ignored, and will be replaced after the next successful update.
+     */
+    static final int VERSION = 1;
+
+    private static final String DIR_SNAPSHOTS = "snapshots";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private static final int FLAG_ALERT = 0x1;
+
+    private ForecastSnapshot() {
+    }
+
+    /**
+     * Encode the given forecasts into a snapshot.
+     */
+    public static byte[] encode(ForecastBatch forecasts) {
+        int count = forecasts.size();
+        int stringCount = forecasts.getStringCount();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            // Batches already intern their strings, so write the table as-is
+            out.writeShort(stringCount);
+            for (int i = 0; i < stringCount; i++) {
+                out.writeUTF(forecasts.getString(i));
+            }
+
+            out.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                out.writeByte(forecasts.isAlert(i) ? FLAG_ALERT : 0);
+                out.writeLong(forecasts.getValidStart(i));
+                out.writeInt(forecasts.getTempHigh(i));
+                out.writeInt(forecasts.getTempLow(i));
+                out.writeShort(forecasts.getConditionsIndex(i));
+                out.writeShort(forecasts.getUrlIndex(i));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Writing into memory never fails
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode forecasts from the given snapshot, in the same order they were
+     * encoded.
+     */
+    public static ForecastBatch decode(byte[] snapshot) throws ParseException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new ParseException("Not a forecast snapshot");
+            }
+            int version = in.readUnsignedShort();
+            if (version != VERSION) {
+                throw new ParseException("Unsupported snapshot version " + version);
+            }
+            in.readLong();
+
+            int stringCount = in.readUnsignedShort();
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            int count = in.readUnsignedShort();
+            ForecastBatch forecasts = new ForecastBatch(count);
+            for (int i = 0; i < count; i++) {
+                int index = forecasts.add();
+                forecasts.setAlert(index, (in.readByte() & FLAG_ALERT) != 0);
+                forecasts.setValidStart(index, in.readLong());
+                forecasts.setTempHigh(index, in.readInt());
+                forecasts.setTempLow(index, in.readInt());
+                forecasts.setConditions(index, lookup(in.readShort(), strings));
+                forecasts.setUrl(index, lookup(in.readShort(), strings));
+            }
+            return forecasts;
+        } catch (IOException e) {
+            throw new ParseException("Truncated forecast snapshot", e);
+        }
+    }
+
+    /**
+     * Store a snapshot of the given forecasts for a widget, replacing any
+     * existing snapshot. The new snapshot is written to a uniquely named file
+     * beside the old one and renamed over it, so readers never see a partial
+     * file and overlapping writers don't share a temp file.
+     */
+    public static void write(Context context, long appWidgetId, ForecastBatch forecasts)
+            throws IOException {
+        File target = getFile(context, appWidgetId);
+        File temp = File.createTempFile(target.getName(), SUFFIX_TEMP, target.getParentFile());
+
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(encode(forecasts));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Couldn't replace snapshot " + target);
+        }
+    }
+
+    /**
+     * Load the snapshot stored for a widget, or return null if there isn't a
+     * usable one.
+     */
+    public static ForecastBatch read(Context context, long appWidgetId) {
+        File file = getFile(context, appWidgetId);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            // Pull the whole snapshot in with a single sequential read
+            byte[] snapshot = new byte[(int)file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < snapshot.length) {
+                    int read = in.read(snapshot, offset, snapshot.length - offset);
+                    if (read == -1) {
+                        break;
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            return decode(snapshot);
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading snapshot for widget " + appWidgetId, e);
+        } catch (ParseException e) {
+            Log.w(TAG, "Ignoring unusable snapshot for widget " + appWidgetId, e);
+        }
+        return null;
+    }
+
+    /**
+     * Remove any snapshot stored for a widget.
+     */
+    public static void delete(Context context, long appWidgetId) {
+        getFile(context, appWidgetId).delete();
+    }
+
+    private static File getFile(Context context, long appWidgetId) {
+        File dir = context.getDir(DIR_SNAPSHOTS, Context.MODE_PRIVATE);
+        return new File(dir, "appwidget-" + appWidgetId);
+    }
+
+    private static String lookup(int index, String[] strings) throws ParseException {
+        if (index == ForecastBatch.NO_STRING) {
+            return null;
+        } else if (index < 0 || index >= strings.length) {
+            throw new ParseException("Invalid string index " + index + " in snapshot");
+        }
+        return strings[index];
+    }
+}
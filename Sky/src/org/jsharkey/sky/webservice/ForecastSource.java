@@ -18,15 +18,20 @@ package org.jsharkey.sky.webservice;
 
 import org.jsharkey.sky.webservice.Forecast.ParseException;
 
-import java.util.List;
-
 public interface ForecastSource {
     
     /**
-     * Query the given location and parse any returned data into a set of
-     * {@link Forecast} objects. This is a blocking call while waiting for the
+     * Query the given location and parse any returned data into a
+     * {@link ForecastBatch}. This is a blocking call while waiting for the
      * webservice to return.
+     * <p>
+     * If validators are given, the query may be made conditional on them.
+     * When the webservice reports nothing has changed, this returns null and
+     * marks the validators as {@link CacheValidators#isNotModified()}.
+     * Otherwise the validators are replaced with any returned alongside the
+     * new data.
      */
-    public List<Forecast> getForecasts(double lat, double lon, int days) throws ParseException;
+    public ForecastBatch getForecasts(double lat, double lon, int days,
+            CacheValidators validators) throws ParseException;
 
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * {@link DwmlParser} that walks the response with an {@link XmlPullParser},
+ * collecting forecasts into a map keyed by <code>time-layout</code> that is
+ * flattened and sorted afterwards. This was our original parser, and is kept
+ * as a baseline when comparing engines.
+ */
+public class MapDwmlParser implements DwmlParser, DwmlTags {
+
+    /**
+     * Retrieve a specific {@link Forecast} object from the given {@link Map}
+     * structure. If the {@link Forecast} doesn't exist, it's created and
+     * returned.
+     */
+    private static Forecast getForecast(Map<String, List<Forecast>> forecasts,
+            String layout, int index) {
+        if (!forecasts.containsKey(layout)) {
+            forecasts.put(layout, new ArrayList<Forecast>());
+        }
+        List<Forecast> layoutSpecific = forecasts.get(layout);
+
+        while (index >= layoutSpecific.size()) {
+            layoutSpecific.add(new Forecast());
+        }
+        return layoutSpecific.get(index);
+    }
+
+    /**
+     * Flatten a set of {@link Forecast} objects that are separated into
+     * <code>time-layout</code> sections in the given {@link Map}. This discards
+     * any forecasts that have empty {@link Forecast#conditions}.
+     * <p>
+     * Sorts the resulting list by time, with any alerts forced to the top.
+     */
+    static List<Forecast> flattenForecasts(Map<String, List<Forecast>> forecasts) {
+        List<Forecast> flat = new ArrayList<Forecast>();
+
+        // Collect together all forecasts that have valid conditions
+        for (String layout : forecasts.keySet()) {
+            for (Forecast forecast : forecasts.get(layout)) {
+                if (forecast.conditions != null && forecast.conditions.length() > 0) {
+                    flat.add(forecast);
+                }
+            }
+        }
+
+        // Sort by time, but always bump alerts to top
+        Collections.sort(flat, new Comparator<Forecast>() {
+            public int compare(Forecast left, Forecast right) {
+                if (left.alert != right.alert) {
+                    return left.alert ? -1 : 1;
+                } else if (left.validStart != right.validStart) {
+                    return (left.validStart < right.validStart) ? -1 : 1;
+                } else {
+                    return 0;
+                }
+            }
+        });
+
+        return flat;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ForecastBatch parse(InputStream response, ParseStats stats) throws ParseException {
+        // Keep a temporary mapping between time series tags and forecasts
+        Map<String, List<Forecast>> forecasts = new HashMap<String, List<Forecast>>();
+        String detailsUrl = null;
+        XmlPullParser xpp = null;
+
+        try {
+            xpp = PullDwmlParser.obtainPullParser();
+
+            int index = 0;
+            String thisTag = null;
+            String thisLayout = null;
+            String thisType = null;
+
+            xpp.setInput(new InputStreamReader(response));
+            int eventType = xpp.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                stats.eventsProcessed++;
+                if (eventType == XmlPullParser.START_TAG) {
+                    thisTag = xpp.getName();
+
+                    if (PullDwmlParser.isSkipped(thisTag)) {
+                        PullDwmlParser.skipSubtree(xpp, stats);
+                        thisTag = null;
+                        eventType = xpp.next();
+                        continue;
+                    }
+
+                    if (TAG_TEMPERATURE.equals(thisTag) || TAG_WEATHER.equals(thisTag)
+                            || TAG_HAZARDS.equals(thisTag)) {
+                        thisLayout = xpp.getAttributeValue(null, ATTR_TIME_LAYOUT);
+                        thisType = xpp.getAttributeValue(null, ATTR_TYPE);
+                        index = -1;
+
+                    } else if (TAG_WEATHER_CONDITIONS.equals(thisTag)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
+                        forecast.conditions = xpp.getAttributeValue(null, ATTR_WEATHER_SUMMARY);
+
+                    } else if (TAG_HAZARD.equals(thisTag)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
+                        forecast.alert = true;
+                        forecast.conditions = xpp.getAttributeValue(null, ATTR_PHENOMENA) + " "
+                                + xpp.getAttributeValue(null, ATTR_SIGNIFICANCE);
+                    }
+
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    thisTag = null;
+
+                } else if (eventType == XmlPullParser.TEXT) {
+                    if (TAG_LAYOUT_KEY.equals(thisTag)) {
+                        thisLayout = xpp.getText();
+                        index = -1;
+
+                    } else if (TAG_START_VALID_TIME.equals(thisTag)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
+                        forecast.validStart = DwmlTimestamp.parse(xpp.getText());
+
+                    } else if (TAG_VALUE.equals(thisTag) && TYPE_MAXIMUM.equals(thisType)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
+                        forecast.tempHigh = DwmlCollector.parseTemperature(xpp.getText());
+                        forecast.url = detailsUrl;
+
+                    } else if (TAG_VALUE.equals(thisTag) && TYPE_MINIMUM.equals(thisType)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
+                        forecast.tempLow = DwmlCollector.parseTemperature(xpp.getText());
+
+                    } else if (TAG_HAZARDTEXTURL.equals(thisTag)) {
+                        Forecast forecast = getForecast(forecasts, thisLayout, index);
+                        forecast.url = xpp.getText();
+
+                    } else if (TAG_MOREWEATHERINFORMATION.equals(thisTag)) {
+                        detailsUrl = xpp.getText();
+
+                    }
+                }
+                eventType = xpp.next();
+            }
+        } catch (IOException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } catch (XmlPullParserException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } finally {
+            if (xpp != null) {
+                PullDwmlParser.releasePullParser(xpp);
+            }
+        }
+
+        // Flatten non-empty forecasts into single list
+        return ForecastBatch.fromForecasts(flattenForecasts(forecasts));
+    }
+}
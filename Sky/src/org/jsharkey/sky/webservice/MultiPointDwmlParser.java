@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Parses a DWML response covering several points at once, as returned when
+ * asking NOAA for a <code>listLatLon</code>. Each <code>parameters</code>
+ * section names its point with an <code>applicable-location</code>, and is
+ * collected into its own {@link DwmlCollector}.
+ * <p>
+ * Points share the <code>time-layout</code> sections, which come before any
+ * parameters. We record them once and replay them into each collector as its
+ * point is first seen. The whole document is always read, since any point may
+ * come last.
+ */
+final class MultiPointDwmlParser implements DwmlTags {
+    /**
+     * Prefix NOAA uses for the <code>location-key</code> of each point,
+     * numbered from 1 in request order.
+     */
+    static final String LOCATION_KEY_PREFIX = "point";
+
+    /**
+     * Return the <code>location-key</code> NOAA assigns to the point at the
+     * given index of a request.
+     */
+    static String keyFor(int index) {
+        return LOCATION_KEY_PREFIX + (index + 1);
+    }
+
+    /**
+     * Parse the given response, returning forecasts for each point keyed by
+     * its <code>location-key</code>. Points without any parameters are
+     * missing from the result.
+     */
+    Map<String, ForecastBatch> parse(InputStream response, ParseStats stats)
+            throws ParseException {
+        List<Layout> layouts = new ArrayList<Layout>();
+        Map<String, String> detailsUrls = new HashMap<String, String>();
+        Map<String, DwmlCollector> collectors = new LinkedHashMap<String, DwmlCollector>();
+
+        DwmlCollector collector = null;
+        Layout layout = null;
+        String detailsLocation = null;
+        XmlPullParser xpp = null;
+
+        try {
+            xpp = PullDwmlParser.obtainPullParser();
+            int thisTag = DwmlTagTable.CODE_OTHER;
+
+            xpp.setInput(new InputStreamReader(response));
+            int eventType = xpp.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                stats.eventsProcessed++;
+                if (eventType == XmlPullParser.START_TAG) {
+                    thisTag = DwmlTagTable.lookup(xpp.getName());
+
+                    if (thisTag == DwmlTagTable.CODE_SKIPPED) {
+                        PullDwmlParser.skipSubtree(xpp, stats);
+                        thisTag = DwmlTagTable.CODE_OTHER;
+                    } else if (thisTag == DwmlTagTable.CODE_PARAMETERS) {
+                        String location = xpp.getAttributeValue(null, ATTR_APPLICABLE_LOCATION);
+                        collector = collectors.get(location);
+                        if (collector == null && location != null) {
+                            collector = newCollector(layouts, detailsUrls.get(location));
+                            collectors.put(location, collector);
+                        }
+                    } else if (thisTag == DwmlTagTable.CODE_MOREWEATHERINFORMATION) {
+                        detailsLocation = xpp.getAttributeValue(null, ATTR_APPLICABLE_LOCATION);
+                    } else if (collector != null) {
+                        PullDwmlParser.dispatchStartTag(xpp, thisTag, collector);
+                    }
+
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    thisTag = DwmlTagTable.CODE_OTHER;
+
+                    int endTag = DwmlTagTable.lookup(xpp.getName());
+                    if (collector != null && DwmlTagTable.isBlockTag(endTag)) {
+                        collector.endBlock();
+                    } else if (collector != null && endTag == DwmlTagTable.CODE_PARAMETERS) {
+                        collector.endParameters();
+                        collector = null;
+                    }
+
+                } else if (eventType == XmlPullParser.TEXT && DwmlTagTable.isTextTag(thisTag)) {
+                    switch (thisTag) {
+                        case DwmlTagTable.CODE_LAYOUT_KEY: {
+                            layout = new Layout(xpp.getText());
+                            layouts.add(layout);
+                            for (DwmlCollector each : collectors.values()) {
+                                each.beginLayout(layout.mKey);
+                            }
+                            break;
+                        }
+                        case DwmlTagTable.CODE_START_VALID_TIME: {
+                            if (layout == null) {
+                                break;
+                            }
+                            long validStart = DwmlTimestamp.parse(xpp.getText());
+                            layout.add(validStart);
+                            for (DwmlCollector each : collectors.values()) {
+                                each.addValidStart(validStart);
+                            }
+                            break;
+                        }
+                        case DwmlTagTable.CODE_VALUE: {
+                            if (collector != null
+                                    && PullDwmlParser.isTemperature(collector.getBlock())) {
+                                collector.addTemperature(DwmlCollector.parseTemperature(xpp.getText()));
+                            }
+                            break;
+                        }
+                        case DwmlTagTable.CODE_HAZARDTEXTURL: {
+                            if (collector != null) {
+                                collector.setHazardUrl(xpp.getText());
+                            }
+                            break;
+                        }
+                        case DwmlTagTable.CODE_MOREWEATHERINFORMATION: {
+                            if (detailsLocation != null) {
+                                detailsUrls.put(detailsLocation, xpp.getText());
+                                DwmlCollector target = collectors.get(detailsLocation);
+                                if (target != null) {
+                                    target.setDetailsUrl(xpp.getText());
+                                }
+                            }
+                            break;
+                        }
+                    }
+                }
+                eventType = xpp.next();
+            }
+        } catch (IOException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } catch (XmlPullParserException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } finally {
+            if (xpp != null) {
+                PullDwmlParser.releasePullParser(xpp);
+            }
+        }
+
+        Map<String, ForecastBatch> forecasts = new HashMap<String, ForecastBatch>();
+        for (Map.Entry<String, DwmlCollector> entry : collectors.entrySet()) {
+            forecasts.put(entry.getKey(), entry.getValue().finish());
+        }
+        return forecasts;
+    }
+
+    /**
+     * Create a collector for a newly seen point, already holding every layout
+     * read so far.
+     */
+    private static DwmlCollector newCollector(List<Layout> layouts, String detailsUrl) {
+        DwmlCollector collector = new DwmlCollector();
+        for (Layout layout : layouts) {
+            collector.beginLayout(layout.mKey);
+            for (int i = 0; i < layout.mCount; i++) {
+                collector.addValidStart(layout.mStarts[i]);
+            }
+        }
+        collector.setDetailsUrl(detailsUrl);
+        return collector;
+    }
+
+    /**
+     * <code>time-layout</code> recorded so it can be replayed into collectors
+     * created after it was read.
+     */
+    private static class Layout {
+        final String mKey;
+        long[] mStarts = new long[8];
+        int mCount = 0;
+
+        Layout(String key) {
+            mKey = key;
+        }
+
+        void add(long validStart) {
+            if (mCount == mStarts.length) {
+                long[] grown = new long[mCount * 2];
+                System.arraycopy(mStarts, 0, grown, 0, mCount);
+                mStarts = grown;
+            }
+            mStarts[mCount++] = validStart;
+        }
+    }
+}
@@ -16,31 +16,18 @@
 
 package org.jsharkey.sky.webservice;
 
-import java.io.IOException;
-import java.io.Reader;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.jsharkey.sky.ForecastProvider;
 import org.jsharkey.sky.webservice.Forecast.ParseException;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
-import android.text.Editable;
-import android.text.SpannableStringBuilder;
-import android.text.TextUtils;
-import android.text.format.Time;
 import android.util.Log;
-import android.util.TimeFormatException;
 
 /**
  * Helper class to handle querying a webservice for forecast details and parsing
- * results into {@link ForecastProvider}.
+ * results into {@link ForecastProvider}. The actual parsing is delegated to a
+ * {@link DwmlParser}, which can be swapped at runtime.
  */
 public class NoaaSource implements ForecastSource {
     private static final String TAG = "NoaaHelper";
@@ -48,215 +35,155 @@ public class NoaaSource implements ForecastSource {
     static final String WEBSERVICE_URL = "http://www.weather.gov/forecasts/xml/sample_products/browser_interface/ndfdBrowserClientByDay.php?&lat=%f&lon=%f&format=24+hourly&numDays=%d";
 
     /**
-     * Various XML tags present in the response.
+     * Same query for a list of points, given as <code>lat,lon</code> pairs
+     * separated by spaces.
      */
-    private static final String TAG_TEMPERATURE = "temperature";
-    private static final String TAG_WEATHER = "weather";
-    private static final String TAG_POP = "probability-of-precipitation";
-    private static final String TAG_HAZARDS = "hazards";
-    private static final String TAG_WEATHER_CONDITIONS = "weather-conditions";
-    private static final String TAG_HAZARD = "hazard";
-    private static final String TAG_LAYOUT_KEY = "layout-key";
-    private static final String TAG_START_VALID_TIME = "start-valid-time";
-    private static final String TAG_VALUE = "value";
-    private static final String TAG_HAZARDTEXTURL = "hazardTextURL";
-    private static final String TAG_MOREWEATHERINFORMATION = "moreWeatherInformation";
+    static final String WEBSERVICE_BATCH_URL = "http://www.weather.gov/forecasts/xml/sample_products/browser_interface/ndfdBrowserClientByDay.php?&listLatLon=%s&format=24+hourly&numDays=%d";
 
     /**
-     * Various XML attributes present in the response.
+     * Most points to ask for in a single batch query, keeping the URL and
+     * response to a sensible size.
      */
-    private static final String ATTR_TIME_LAYOUT = "time-layout";
-    private static final String ATTR_TYPE = "type";
-    private static final String ATTR_WEATHER_SUMMARY = "weather-summary";
-    private static final String ATTR_PHENOMENA = "phenomena";
-    private static final String ATTR_SIGNIFICANCE = "significance";
+    static final int MAX_BATCH_POINTS = 50;
 
-    private static final String TYPE_MAXIMUM = "maximum";
-    private static final String TYPE_MINIMUM = "minimum";
+    private volatile DwmlParser mParser;
 
-    /**
-     * Recycled string builder used by {@link #parseDate(String)}.
-     */
-    private static Editable sEditable = new SpannableStringBuilder();
+    private volatile ParseStats mLastStats = null;
 
     /**
-     * Recycled timestamp used by {@link #parseDate(String)}.
+     * Create a source that parses using {@link PullDwmlParser}, stopping as
+     * soon as every parameter block we need has been read.
      */
-    private static Time sTime = new Time();
-
-    private static XmlPullParserFactory sFactory = null;
+    public NoaaSource() {
+        this(new PullDwmlParser(true));
+    }
 
     /**
-     * Parse a NWS date string into a Unix timestamp. Assumes incoming values
-     * are in the format "2009-03-23T18:00:00-07:00", which we adjust slightly
-     * to correctly follow RFC 3339 before parsing.
+     * Create a source that parses responses using the given engine.
      */
-    private static long parseDate(String raw) throws TimeFormatException {
-        // Inject milliseconds so that NWS dates follow RFC
-        sEditable.clear();
-        sEditable.append(raw);
-        sEditable.insert(19, ".000");
-
-        String rfcFormat = sEditable.toString();
-        sTime.parse3339(rfcFormat);
-        return sTime.toMillis(false);
+    public NoaaSource(DwmlParser parser) {
+        setParser(parser);
     }
 
     /**
-     * Retrieve a specific {@link Forecast} object from the given {@link Map}
-     * structure. If the {@link Forecast} doesn't exist, it's created and
-     * returned.
+     * Change the engine used to parse any later responses.
      */
-    private static Forecast getForecast(Map<String, List<Forecast>> forecasts,
-            String layout, int index) {
-        if (!forecasts.containsKey(layout)) {
-            forecasts.put(layout, new ArrayList<Forecast>());
+    public void setParser(DwmlParser parser) {
+        if (parser == null) {
+            throw new IllegalArgumentException("Parser must not be null");
         }
-        List<Forecast> layoutSpecific = forecasts.get(layout);
-
-        while (index >= layoutSpecific.size()) {
-            layoutSpecific.add(new Forecast());
-        }
-        return layoutSpecific.get(index);
+        mParser = parser;
     }
 
     /**
-     * Flatten a set of {@link Forecast} objects that are separated into
-     * <code>time-layout</code> sections in the given {@link Map}. This discards
-     * any forecasts that have empty {@link Forecast#conditions}.
-     * <p>
-     * Sorts the resulting list by time, with any alerts forced to the top.
+     * Return the engine currently used to parse responses.
      */
-    private static List<Forecast> flattenForecasts(Map<String, List<Forecast>> forecasts) {
-        List<Forecast> flat = new ArrayList<Forecast>();
-
-        // Collect together all forecasts that have valid conditions
-        for (String layout : forecasts.keySet()) {
-            for (Forecast forecast : forecasts.get(layout)) {
-                if (!TextUtils.isEmpty(forecast.conditions)) {
-                    flat.add(forecast);
-                }
-            }
-        }
-
-        // Sort by time, but always bump alerts to top
-        Collections.sort(flat, new Comparator<Forecast>() {
-            public int compare(Forecast left, Forecast right) {
-                if (left.alert) {
-                    return -1;
-                } else {
-                    return (int)(left.validStart - right.validStart);
-                }
-            }
-        });
+    public DwmlParser getParser() {
+        return mParser;
+    }
 
-        return flat;
+    /**
+     * Return counters from the most recent parse performed by this source, or
+     * null if nothing has been parsed yet.
+     */
+    public ParseStats getLastStats() {
+        return mLastStats;
     }
-    
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public List<Forecast> getForecasts(double lat, double lon, int days) throws ParseException {
+    public ForecastBatch getForecasts(double lat, double lon, int days,
+            CacheValidators validators) throws ParseException {
         if (Double.isNaN(lat) || Double.isNaN(lon)) {
             throw new ParseException("Requested forecast for invalid location");
         } else {
             Log.d(TAG, String.format("queryLocation() with lat=%f, lon=%f, days=%d", lat, lon, days));
         }
 
-        // Make API call to find forecasts
-        String url = String.format(WEBSERVICE_URL, lat, lon, days);
-        Reader reader = WebserviceHelper.queryApi(url);
-        
-        // Parse incoming forecast data
-        List<Forecast> forecasts = parseResponse(reader);
+        // Make API call to find forecasts, and parse incoming forecast data.
+        // Always format with a period as the decimal separator, whatever the
+        // user's locale.
+        String url = String.format(Locale.US, WEBSERVICE_URL, lat, lon, days);
+        final ParseStats stats = new ParseStats();
+        ForecastBatch forecasts = WebserviceHelper.queryApi(url, validators, stats,
+                new WebserviceResponse.Handler<ForecastBatch>() {
+                    public ForecastBatch handleResponse(WebserviceResponse response)
+                            throws ParseException {
+                        ForecastBatch parsed = mParser.parse(response.getBody(), stats);
+                        response.setForecastCount(parsed.size());
+                        if (stats.completedEarly) {
+                            // Stop downloading anything left after an early exit
+                            response.abandon();
+                        }
+                        return parsed;
+                    }
+                });
+        if (forecasts == null) {
+            Log.d(TAG, "Forecast not modified since last query");
+            return null;
+        }
+
+        Log.d(TAG, "Parsed forecasts with " + stats);
+        mLastStats = stats;
         return forecasts;
     }
 
     /**
-     * Parse a webservice XML response into {@link Forecast} objects.
+     * Query forecasts for several points in a single request, returning them
+     * in the same order as the given coordinates. Points the webservice
+     * returned nothing for are left null. Always parses with
+     * {@link MultiPointDwmlParser}, and never sends validators, since they
+     * belong to single-point responses.
      */
-    private static List<Forecast> parseResponse(Reader response) throws ParseException {
-        // Keep a temporary mapping between time series tags and forecasts
-        Map<String, List<Forecast>> forecasts = new HashMap<String, List<Forecast>>();
-        String detailsUrl = null;
+    public ForecastBatch[] getForecasts(double[] lats, double[] lons, int days)
+            throws ParseException {
+        if (lats.length != lons.length || lats.length == 0
+                || lats.length > MAX_BATCH_POINTS) {
+            throw new ParseException("Requested forecasts for invalid batch of locations");
+        }
 
-        try {
-            if (sFactory == null) {
-                sFactory = XmlPullParserFactory.newInstance();
+        StringBuilder points = new StringBuilder();
+        for (int i = 0; i < lats.length; i++) {
+            if (Double.isNaN(lats[i]) || Double.isNaN(lons[i])) {
+                throw new ParseException("Requested forecast for invalid location");
             }
-            XmlPullParser xpp = sFactory.newPullParser();
-
-            int index = 0;
-            String thisTag = null;
-            String thisLayout = null;
-            String thisType = null;
-
-            xpp.setInput(response);
-            int eventType = xpp.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG) {
-                    thisTag = xpp.getName();
-
-                    if (TAG_TEMPERATURE.equals(thisTag) || TAG_WEATHER.equals(thisTag)
-                            || TAG_POP.equals(thisTag) || TAG_HAZARDS.equals(thisTag)) {
-                        thisLayout = xpp.getAttributeValue(null, ATTR_TIME_LAYOUT);
-                        thisType = xpp.getAttributeValue(null, ATTR_TYPE);
-                        index = -1;
-
-                    } else if (TAG_WEATHER_CONDITIONS.equals(thisTag)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
-                        forecast.conditions = xpp.getAttributeValue(null, ATTR_WEATHER_SUMMARY);
-
-                    } else if (TAG_HAZARD.equals(thisTag)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
-                        forecast.alert = true;
-                        forecast.conditions = xpp.getAttributeValue(null, ATTR_PHENOMENA) + " "
-                                + xpp.getAttributeValue(null, ATTR_SIGNIFICANCE);
+            if (i > 0) {
+                points.append('+');
+            }
+            points.append(String.format(Locale.US, "%f,%f", lats[i], lons[i]));
+        }
+        Log.d(TAG, String.format("queryLocations() with points=%d, days=%d", lats.length, days));
+
+        // Make API call to find forecasts for every point, split by point
+        String url = String.format(Locale.US, WEBSERVICE_BATCH_URL, points, days);
+        final ParseStats stats = new ParseStats();
+        Map<String, ForecastBatch> byLocation = WebserviceHelper.queryApi(url, null, stats,
+                new WebserviceResponse.Handler<Map<String, ForecastBatch>>() {
+                    public Map<String, ForecastBatch> handleResponse(WebserviceResponse response)
+                            throws ParseException {
+                        Map<String, ForecastBatch> parsed = new MultiPointDwmlParser().parse(
+                                response.getBody(), stats);
+                        int count = 0;
+                        for (ForecastBatch batch : parsed.values()) {
+                            count += batch.size();
+                        }
+                        response.setForecastCount(count);
+                        return parsed;
                     }
+                });
+        if (byLocation == null) {
+            throw new ParseException("No response from batch forecast query");
+        }
 
-                } else if (eventType == XmlPullParser.END_TAG) {
-                    thisTag = null;
-
-                } else if (eventType == XmlPullParser.TEXT) {
-                    if (TAG_LAYOUT_KEY.equals(thisTag)) {
-                        thisLayout = xpp.getText();
-                        index = -1;
-
-                    } else if (TAG_START_VALID_TIME.equals(thisTag)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
-                        forecast.validStart = parseDate(xpp.getText());
-
-                    } else if (TAG_VALUE.equals(thisTag) && TYPE_MAXIMUM.equals(thisType)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
-                        forecast.tempHigh = Integer.parseInt(xpp.getText());
-                        forecast.url = detailsUrl;
-
-                    } else if (TAG_VALUE.equals(thisTag) && TYPE_MINIMUM.equals(thisType)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, ++index);
-                        forecast.tempLow = Integer.parseInt(xpp.getText());
-
-                    } else if (TAG_HAZARDTEXTURL.equals(thisTag)) {
-                        Forecast forecast = getForecast(forecasts, thisLayout, index);
-                        forecast.url = xpp.getText();
-
-                    } else if (TAG_MOREWEATHERINFORMATION.equals(thisTag)) {
-                        detailsUrl = xpp.getText();
-
-                    }
-                }
-                eventType = xpp.next();
-            }
-        } catch (IOException e) {
-            throw new ParseException("Problem parsing XML forecast", e);
-        } catch (XmlPullParserException e) {
-            throw new ParseException("Problem parsing XML forecast", e);
-        } catch (TimeFormatException e) {
-            throw new ParseException("Problem parsing XML forecast", e);
+        ForecastBatch[] forecasts = new ForecastBatch[lats.length];
+        for (int i = 0; i < forecasts.length; i++) {
+            forecasts[i] = byLocation.get(MultiPointDwmlParser.keyFor(i));
         }
 
-        // Flatten non-empty forecasts into single list
-        return flattenForecasts(forecasts);
+        Log.d(TAG, "Parsed batch forecasts with " + stats);
+        mLastStats = stats;
+        return forecasts;
     }
 }
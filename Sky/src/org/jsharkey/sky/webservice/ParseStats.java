@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Counters describing the work done while parsing a single webservice
+ * response, used to measure how much of a document we manage to avoid.
+ */
+public class ParseStats {
+    int eventsProcessed = 0;
+    int eventsSkipped = 0;
+    boolean completedEarly = false;
+    long bytesReceived = 0;
+    long bytesDecoded = 0;
+
+    /**
+     * Number of parser events that were dispatched through our state machine.
+     */
+    public int getEventsProcessed() {
+        return eventsProcessed;
+    }
+
+    /**
+     * Number of parser events inside uninteresting subtrees that were passed
+     * over without being dispatched.
+     */
+    public int getEventsSkipped() {
+        return eventsSkipped;
+    }
+
+    /**
+     * True if parsing stopped before the end of the document because every
+     * parameter block we need had already been read.
+     */
+    public boolean isCompletedEarly() {
+        return completedEarly;
+    }
+
+    /**
+     * Number of response bytes read from the network, before any content
+     * encoding was decoded.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Number of response bytes handed to the parser after decoding. Compare
+     * against {@link #getBytesReceived()} to see what compression saved.
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    @Override
+    public String toString() {
+        return "processed=" + eventsProcessed + ", skipped=" + eventsSkipped
+                + ", completedEarly=" + completedEarly + ", bytesReceived=" + bytesReceived
+                + ", bytesDecoded=" + bytesDecoded;
+    }
+}
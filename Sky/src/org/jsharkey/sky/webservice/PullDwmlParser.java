@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * {@link DwmlParser} that walks the response with an {@link XmlPullParser} in
+ * a single pass through a {@link DwmlCollector}.
+ */
+public class PullDwmlParser implements DwmlParser, DwmlTags {
+    private static XmlPullParserFactory sFactory = null;
+
+    private static final ThreadLocal<XmlPullParser> sParser = new ThreadLocal<XmlPullParser>();
+
+    private final boolean mEarlyExit;
+
+    /**
+     * Create a parser.
+     *
+     * @param earlyExit If true, stop reading as soon as every parameter block
+     *            we need has been read.
+     */
+    public PullDwmlParser(boolean earlyExit) {
+        mEarlyExit = earlyExit;
+    }
+
+    /**
+     * Create a new {@link XmlPullParser}, creating our shared factory if
+     * needed. Synchronized because update threads may race to create it.
+     */
+    static synchronized XmlPullParser newPullParser() throws XmlPullParserException {
+        if (sFactory == null) {
+            sFactory = XmlPullParserFactory.newInstance();
+        }
+        return sFactory.newPullParser();
+    }
+
+    /**
+     * Return an {@link XmlPullParser} confined to the calling thread, creating
+     * it on first use. Each {@link XmlPullParser#setInput(java.io.Reader)}
+     * resets the parser, so it can be reused across responses. Pair with
+     * {@link #releasePullParser(XmlPullParser)} once finished.
+     */
+    static XmlPullParser obtainPullParser() throws XmlPullParserException {
+        XmlPullParser xpp = sParser.get();
+        if (xpp == null) {
+            xpp = newPullParser();
+            sParser.set(xpp);
+        }
+        return xpp;
+    }
+
+    /**
+     * Detach the given parser from its input so the pooled instance doesn't
+     * keep the last response alive.
+     */
+    static void releasePullParser(XmlPullParser xpp) {
+        try {
+            xpp.setInput(null);
+        } catch (XmlPullParserException e) {
+            // Parser refused to reset, so start over with a fresh instance
+            sParser.remove();
+        }
+    }
+
+    /**
+     * Return true if the subtree under the given tag never contains anything
+     * we keep.
+     */
+    static boolean isSkipped(String tag) {
+        return DwmlTagTable.lookup(tag) == DwmlTagTable.CODE_SKIPPED;
+    }
+
+    /**
+     * Pass over the subtree rooted at the current start tag without
+     * dispatching any of its events, leaving the parser on its end tag.
+     */
+    static void skipSubtree(XmlPullParser xpp, ParseStats stats)
+            throws XmlPullParserException, IOException {
+        int depth = xpp.getDepth();
+        int eventType;
+        while ((eventType = xpp.next()) != XmlPullParser.END_DOCUMENT) {
+            stats.eventsSkipped++;
+            if (eventType == XmlPullParser.END_TAG && xpp.getDepth() == depth) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ForecastBatch parse(InputStream response, ParseStats stats) throws ParseException {
+        DwmlCollector collector = new DwmlCollector();
+        XmlPullParser xpp = null;
+
+        try {
+            xpp = obtainPullParser();
+            int thisTag = DwmlTagTable.CODE_OTHER;
+
+            xpp.setInput(new InputStreamReader(response));
+            int eventType = xpp.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                stats.eventsProcessed++;
+                if (eventType == XmlPullParser.START_TAG) {
+                    thisTag = DwmlTagTable.lookup(xpp.getName());
+
+                    if (thisTag == DwmlTagTable.CODE_SKIPPED) {
+                        skipSubtree(xpp, stats);
+                        thisTag = DwmlTagTable.CODE_OTHER;
+                    } else {
+                        dispatchStartTag(xpp, thisTag, collector);
+                    }
+
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    thisTag = DwmlTagTable.CODE_OTHER;
+
+                    int endTag = DwmlTagTable.lookup(xpp.getName());
+                    if (DwmlTagTable.isBlockTag(endTag)) {
+                        collector.endBlock();
+                    } else if (endTag == DwmlTagTable.CODE_PARAMETERS) {
+                        collector.endParameters();
+                    }
+
+                    if (mEarlyExit && collector.isComplete()) {
+                        stats.completedEarly = true;
+                        break;
+                    }
+
+                } else if (eventType == XmlPullParser.TEXT && DwmlTagTable.isTextTag(thisTag)) {
+                    switch (thisTag) {
+                        case DwmlTagTable.CODE_LAYOUT_KEY:
+                            collector.beginLayout(xpp.getText());
+                            break;
+                        case DwmlTagTable.CODE_START_VALID_TIME:
+                            collector.addValidStart(DwmlTimestamp.parse(xpp.getText()));
+                            break;
+                        case DwmlTagTable.CODE_VALUE:
+                            if (isTemperature(collector.getBlock())) {
+                                collector.addTemperature(DwmlCollector.parseTemperature(xpp.getText()));
+                            }
+                            break;
+                        case DwmlTagTable.CODE_HAZARDTEXTURL:
+                            collector.setHazardUrl(xpp.getText());
+                            break;
+                        case DwmlTagTable.CODE_MOREWEATHERINFORMATION:
+                            collector.setDetailsUrl(xpp.getText());
+                            break;
+                    }
+                }
+                eventType = xpp.next();
+            }
+        } catch (IOException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } catch (XmlPullParserException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } finally {
+            if (xpp != null) {
+                releasePullParser(xpp);
+            }
+        }
+
+        return collector.finish();
+    }
+
+    /**
+     * Pass the parameter block or entry starting at the current tag to the
+     * given collector. Any other tag is ignored.
+     */
+    static void dispatchStartTag(XmlPullParser xpp, int tag, DwmlCollector collector) {
+        switch (tag) {
+            case DwmlTagTable.CODE_TEMPERATURE: {
+                String type = xpp.getAttributeValue(null, ATTR_TYPE);
+                int block = DwmlCollector.BLOCK_NONE;
+                if (TYPE_MAXIMUM.equals(type)) {
+                    block = DwmlCollector.BLOCK_MAXIMUM;
+                } else if (TYPE_MINIMUM.equals(type)) {
+                    block = DwmlCollector.BLOCK_MINIMUM;
+                }
+                collector.beginBlock(block, xpp.getAttributeValue(null, ATTR_TIME_LAYOUT));
+                break;
+            }
+            case DwmlTagTable.CODE_WEATHER: {
+                collector.beginBlock(DwmlCollector.BLOCK_WEATHER,
+                        xpp.getAttributeValue(null, ATTR_TIME_LAYOUT));
+                break;
+            }
+            case DwmlTagTable.CODE_HAZARDS: {
+                collector.beginBlock(DwmlCollector.BLOCK_HAZARDS,
+                        xpp.getAttributeValue(null, ATTR_TIME_LAYOUT));
+                break;
+            }
+            case DwmlTagTable.CODE_WEATHER_CONDITIONS: {
+                collector.addConditions(xpp.getAttributeValue(null, ATTR_WEATHER_SUMMARY));
+                break;
+            }
+            case DwmlTagTable.CODE_HAZARD: {
+                collector.addHazard(xpp.getAttributeValue(null, ATTR_PHENOMENA),
+                        xpp.getAttributeValue(null, ATTR_SIGNIFICANCE));
+                break;
+            }
+        }
+    }
+
+    static boolean isTemperature(int block) {
+        return block == DwmlCollector.BLOCK_MAXIMUM || block == DwmlCollector.BLOCK_MINIMUM;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Token bucket that paces outbound requests. Tokens refill at a steady rate
+ * up to a burst limit, and each request spends one.
+ * <p>
+ * When the bucket is empty, a caller reserves the next token that will
+ * arrive and sleeps until then, without holding any lock. Callers are served
+ * in the order they arrived, and threads that never ask for a token are
+ * never held up.
+ */
+public class RateLimiter {
+    private double mTokensPerMilli;
+    private double mBurst;
+
+    /**
+     * Tokens currently available. Goes negative when callers are waiting for
+     * tokens that haven't arrived yet.
+     */
+    private double mTokens;
+    private long mLastRefill;
+
+    private int mAcquireCount = 0;
+    private int mWaitCount = 0;
+    private long mTotalWait = 0;
+    private long mMaxWait = 0;
+
+    /**
+     * Create a limiter that starts with a full bucket.
+     *
+     * @param perSecond Tokens added each second.
+     * @param burst Most tokens the bucket holds, which is how many requests
+     *            can go out back-to-back.
+     */
+    public RateLimiter(double perSecond, int burst) {
+        mLastRefill = now();
+        setRate(perSecond, burst);
+        mTokens = mBurst;
+    }
+
+    /**
+     * Change the refill rate and burst limit. Anyone already waiting keeps
+     * their reservation.
+     */
+    public synchronized void setRate(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        refill(now());
+        mTokensPerMilli = perSecond / 1000;
+        mBurst = burst;
+        mTokens = Math.min(mTokens, mBurst);
+    }
+
+    /**
+     * Take a token, sleeping until one is available. Returns how long we
+     * waited, in milliseconds.
+     */
+    public long acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            refill(now());
+            mTokens -= 1;
+            wait = (mTokens >= 0) ? 0 : (long)Math.ceil(-mTokens / mTokensPerMilli);
+
+            mAcquireCount++;
+            if (wait > 0) {
+                mWaitCount++;
+                mTotalWait += wait;
+                mMaxWait = Math.max(mMaxWait, wait);
+            }
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                // Hand back our reservation to whoever is next
+                synchronized (this) {
+                    mTokens = Math.min(mTokens + 1, mBurst);
+                }
+                throw e;
+            }
+        }
+        return wait;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - mLastRefill;
+        if (elapsed > 0) {
+            mTokens = Math.min(mTokens + elapsed * mTokensPerMilli, mBurst);
+            mLastRefill = now;
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Number of tokens handed out.
+     */
+    public synchronized int getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * Number of callers that had to wait for a token.
+     */
+    public synchronized int getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * Total time spent waiting for tokens, in milliseconds.
+     */
+    public synchronized long getTotalWait() {
+        return mTotalWait;
+    }
+
+    /**
+     * Longest single wait for a token, in milliseconds.
+     */
+    public synchronized long getMaxWait() {
+        return mMaxWait;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "acquired=" + mAcquireCount + ", waited=" + mWaitCount + ", totalWait="
+                + mTotalWait + "ms, maxWait=" + mMaxWait + "ms";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Deadline and cancellation for the requests one thread makes while answering
+ * a single query, installed with
+ * {@link WebserviceHelper#setRequestControl(RequestControl)}. Requests won't
+ * retry past the deadline, and {@link #abort()} drops whichever request is in
+ * flight, which interrupting the thread alone can't do for a blocking read.
+ */
+final class RequestControl {
+    private final long mDeadline;
+
+    private HttpUriRequest mRequest = null;
+    private boolean mAborted = false;
+
+    /**
+     * Create a control for requests that must finish by the given wall clock
+     * time, in milliseconds.
+     */
+    RequestControl(long deadline) {
+        mDeadline = deadline;
+    }
+
+    long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Track the given request so {@link #abort()} can drop it. Returns false
+     * without tracking it when we've already been aborted.
+     */
+    synchronized boolean attach(HttpUriRequest request) {
+        if (mAborted) {
+            return false;
+        }
+        mRequest = request;
+        return true;
+    }
+
+    /**
+     * Give up on the query, dropping the connection of any request in flight
+     * and refusing any more.
+     */
+    synchronized void abort() {
+        mAborted = true;
+        if (mRequest != null) {
+            mRequest.abort();
+        }
+    }
+
+    synchronized boolean isAborted() {
+        return mAborted;
+    }
+}
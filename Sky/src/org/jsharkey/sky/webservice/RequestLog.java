@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffer holding the {@link RequestMetrics} of the most recent requests,
+ * overwriting the oldest once full. Summaries report percentiles across
+ * whatever is currently held.
+ */
+public class RequestLog {
+    private final RequestMetrics[] mEntries;
+    private int mNext = 0;
+    private int mCount = 0;
+    private long mTotalCount = 0;
+
+    /**
+     * Create a log holding at most the given number of requests.
+     */
+    public RequestLog(int capacity) {
+        mEntries = new RequestMetrics[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Record a finished request, dropping the oldest if full.
+     */
+    public synchronized void add(RequestMetrics metrics) {
+        mEntries[mNext] = metrics;
+        mNext = (mNext + 1) % mEntries.length;
+        mCount = Math.min(mCount + 1, mEntries.length);
+        mTotalCount++;
+    }
+
+    /**
+     * Number of requests recorded since this log was created, including any
+     * that have since been overwritten.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Return the requests currently held, oldest first.
+     */
+    public synchronized RequestMetrics[] snapshot() {
+        RequestMetrics[] result = new RequestMetrics[mCount];
+        int start = (mNext - mCount + mEntries.length) % mEntries.length;
+        for (int i = 0; i < mCount; i++) {
+            result[i] = mEntries[(start + i) % mEntries.length];
+        }
+        return result;
+    }
+
+    /**
+     * Describe the percentiles of each timing and size across the requests
+     * currently held, suitable for logging.
+     */
+    public String summarize() {
+        RequestMetrics[] entries = snapshot();
+        int failed = 0;
+        int cached = 0;
+        long[] connect = new long[entries.length];
+        long[] firstByte = new long[entries.length];
+        long[] parse = new long[entries.length];
+        long[] total = new long[entries.length];
+        long[] bytes = new long[entries.length];
+        int connects = 0;
+        for (int i = 0; i < entries.length; i++) {
+            RequestMetrics entry = entries[i];
+            if (entry.failed) {
+                failed++;
+            }
+            if (entry.cached) {
+                cached++;
+            }
+            if (entry.connectTime != RequestMetrics.UNKNOWN) {
+                connect[connects++] = entry.connectTime;
+            }
+            firstByte[i] = entry.firstByteTime;
+            parse[i] = entry.parseTime;
+            total[i] = entry.totalTime;
+            bytes[i] = entry.bytesReceived;
+        }
+
+        long[] connected = new long[connects];
+        System.arraycopy(connect, 0, connected, 0, connects);
+
+        return "requests=" + entries.length + ", failed=" + failed + ", cached=" + cached
+                + ", connect" + describe(connected, "ms")
+                + ", firstByte" + describe(firstByte, "ms") + ", parse" + describe(parse, "ms")
+                + ", total" + describe(total, "ms") + ", bytes" + describe(bytes, "");
+    }
+
+    private static String describe(long[] values, String unit) {
+        if (values.length == 0) {
+            return "[]";
+        }
+        Arrays.sort(values);
+        return "[p50=" + percentile(values, 0.50) + unit + ", p90=" + percentile(values, 0.90)
+                + unit + ", p99=" + percentile(values, 0.99) + unit + "]";
+    }
+
+    /**
+     * Return the given percentile, between 0 and 1, of the given sorted
+     * values using the nearest rank.
+     */
+    static long percentile(long[] sorted, double fraction) {
+        int rank = (int)Math.ceil(fraction * sorted.length);
+        return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+/**
+ * Timings and sizes measured for a single webservice request, from asking
+ * for the URL through to releasing its response. Every time is in
+ * milliseconds.
+ */
+public class RequestMetrics {
+    /**
+     * Reported for a time that wasn't measured, such as connecting when an
+     * existing connection was reused.
+     */
+    public static final long UNKNOWN = -1;
+
+    final String url;
+    final long startedAt = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+
+    int status = 0;
+    int attempts = 0;
+    boolean cached = false;
+    boolean failed = false;
+    long connectTime = UNKNOWN;
+    long firstByteTime = UNKNOWN;
+    long totalTime = UNKNOWN;
+    long parseTime = UNKNOWN;
+    long bytesReceived = 0;
+    long bytesDecoded = 0;
+    int forecasts = 0;
+
+    RequestMetrics(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Milliseconds elapsed since this request started.
+     */
+    long elapsed() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * URL that was requested, after applying any endpoint override.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Wall clock time this request started, in milliseconds since the epoch.
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * HTTP status of the final attempt, or 0 if none got an answer or the
+     * response came from the cache.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Number of times the request was sent, counting retries.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * True if the response was served from {@link WebserviceCache}.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * True if the request or reading its response failed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Time spent resolving the host and opening a connection on the final
+     * attempt, or {@link #UNKNOWN} if a pooled connection was reused.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Time from starting the request until the response headers arrived,
+     * including any retries.
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    /**
+     * Time from starting the request until its response was released.
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * Time spent reading and parsing the body. Since the body streams into
+     * the parser, this includes waiting on the network.
+     */
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * Body bytes read from the connection, before decoding.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Body bytes handed to the parser, after decoding.
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /**
+     * Number of forecasts parsed out of the response.
+     */
+    public int getForecasts() {
+        return forecasts;
+    }
+
+    @Override
+    public String toString() {
+        return "status=" + status + ", attempts=" + attempts + ", cached=" + cached
+                + ", failed=" + failed + ", connect=" + connectTime + "ms, firstByte="
+                + firstByteTime + "ms, parse=" + parseTime + "ms, total=" + totalTime
+                + "ms, bytesReceived=" + bytesReceived + ", bytesDecoded=" + bytesDecoded
+                + ", forecasts=" + forecasts;
+    }
+}
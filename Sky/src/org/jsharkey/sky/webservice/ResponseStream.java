@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+/**
+ * Response body that transparently decodes any <code>gzip</code> or
+ * <code>deflate</code> content encoding while it streams into a parser,
+ * counting both the bytes received over the wire and the decoded bytes handed
+ * to the reader.
+ * <p>
+ * Aborting or releasing this stream is passed through to the underlying
+ * connection, so callers can still drop a connection after an early exit.
+ * <p>
+ * When filling a {@link WebserviceCache}, decoded bytes are copied into the
+ * new entry as they're read, and only fully read bodies are cached. Closing
+ * the stream finishes reading the body and commits the entry, while aborting
+ * it, such as after an early exit, drops the partial entry along with the
+ * connection rather than downloading the rest.
+ */
+final class ResponseStream extends FilterInputStream implements ConnectionReleaseTrigger {
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * Value sent in our <code>Accept-Encoding</code> request header.
+     */
+    static final String ACCEPT_ENCODING = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+
+    private final InputStream mRaw;
+    private final CountingStream mReceived;
+    private long mDecoded = 0;
+    private final byte[] mSingle = new byte[1];
+
+    private WebserviceCache.Writer mCacheWriter = null;
+    private boolean mFinished = false;
+
+    private ResponseStream(InputStream raw, CountingStream received, InputStream decoded) {
+        super(decoded);
+        mRaw = raw;
+        mReceived = received;
+    }
+
+    /**
+     * Wrap the given raw response body, decoding it according to the given
+     * <code>Content-Encoding</code>, which may be null.
+     */
+    static ResponseStream wrap(InputStream raw, String contentEncoding) throws IOException {
+        CountingStream received = new CountingStream(raw);
+        InputStream decoded = received;
+        if (contentEncoding != null) {
+            String encoding = contentEncoding.trim();
+            if (ENCODING_GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+                decoded = new GZIPInputStream(received);
+            } else if (ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+                decoded = inflate(received);
+            }
+        }
+        return new ResponseStream(raw, received, decoded);
+    }
+
+    /**
+     * Decode a <code>deflate</code> body. The spec calls for a zlib wrapper,
+     * but some servers send raw deflate data, so peek at the header to tell
+     * them apart.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int first = pushback.read();
+        int second = pushback.read();
+        if (second != -1) {
+            pushback.unread(second);
+        }
+        if (first != -1) {
+            pushback.unread(first);
+        }
+
+        boolean zlib = (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    /**
+     * Copy everything read from this stream into the given cache entry,
+     * which is committed once the body has been read to the end.
+     */
+    void setCacheWriter(WebserviceCache.Writer writer) {
+        mCacheWriter = writer;
+    }
+
+    /**
+     * Number of bytes read from the connection so far, before decoding.
+     */
+    long getReceivedBytes() {
+        return mReceived.mCount;
+    }
+
+    /**
+     * Number of bytes handed to our reader so far, after decoding.
+     */
+    long getDecodedBytes() {
+        return mDecoded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(mSingle, 0, 1) == -1) ? -1 : (mSingle[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read;
+        try {
+            read = in.read(buffer, offset, length);
+        } catch (IOException e) {
+            discardCache();
+            throw e;
+        }
+
+        if (read > 0) {
+            mDecoded += read;
+            if (mCacheWriter != null) {
+                mCacheWriter.write(buffer, offset, read);
+            }
+        } else if (read == -1) {
+            mFinished = true;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Read through skipped bytes so any cache entry stays complete
+        byte[] buffer = new byte[(int)Math.min(count, 4096)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finishCache();
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * Read any remaining body into our cache entry and commit it.
+     */
+    private void finishCache() throws IOException {
+        if (mCacheWriter == null) {
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[4096];
+            while (!mFinished) {
+                read(buffer, 0, buffer.length);
+            }
+            mCacheWriter.commit();
+        } finally {
+            discardCache();
+        }
+    }
+
+    /**
+     * Throw away any cache entry being filled, such as when the body turned
+     * out to be unusable.
+     */
+    void discardCache() {
+        if (mCacheWriter != null) {
+            mCacheWriter.discard();
+            mCacheWriter = null;
+        }
+    }
+
+    public void abortConnection() throws IOException {
+        discardCache();
+        if (mRaw instanceof ConnectionReleaseTrigger) {
+            ((ConnectionReleaseTrigger)mRaw).abortConnection();
+        } else {
+            mRaw.close();
+        }
+    }
+
+    public void releaseConnection() throws IOException {
+        if (mRaw instanceof ConnectionReleaseTrigger) {
+            ((ConnectionReleaseTrigger)mRaw).releaseConnection();
+        } else {
+            mRaw.close();
+        }
+    }
+
+    /**
+     * Counts bytes as they come off the wire, before any decoding.
+     */
+    private static class CountingStream extends FilterInputStream {
+        long mCount = 0;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if (value != -1) {
+                mCount++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
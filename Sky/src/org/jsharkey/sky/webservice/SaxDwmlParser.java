@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * {@link DwmlParser} that receives the response as SAX callbacks, feeding
+ * them through a {@link DwmlCollector}. Text content can arrive across several
+ * {@link DefaultHandler#characters(char[], int, int)} calls, so it's buffered
+ * until the enclosing element changes.
+ */
+public class SaxDwmlParser implements DwmlParser, DwmlTags {
+    private static SAXParserFactory sFactory = null;
+
+    private final boolean mEarlyExit;
+
+    /**
+     * Create a parser.
+     *
+     * @param earlyExit If true, stop reading as soon as every parameter block
+     *            we need has been read.
+     */
+    public SaxDwmlParser(boolean earlyExit) {
+        mEarlyExit = earlyExit;
+    }
+
+    /**
+     * Create a new {@link SAXParser}, creating our shared factory if needed.
+     */
+    private static synchronized SAXParser newSaxParser() throws ParserConfigurationException,
+            SAXException {
+        if (sFactory == null) {
+            sFactory = SAXParserFactory.newInstance();
+        }
+        return sFactory.newSAXParser();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ForecastBatch parse(InputStream response, ParseStats stats) throws ParseException {
+        DwmlHandler handler = new DwmlHandler(stats, mEarlyExit);
+
+        try {
+            newSaxParser().parse(response, handler);
+        } catch (CompletedException e) {
+            stats.completedEarly = true;
+        } catch (IOException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        } catch (SAXException e) {
+            if (handler.mError != null) {
+                // Our own failure, wrapped only to get it out of the handler
+                throw handler.mError;
+            }
+            throw new ParseException("Problem parsing XML forecast", e);
+        } catch (ParserConfigurationException e) {
+            throw new ParseException("Problem parsing XML forecast", e);
+        }
+
+        return handler.mCollector.finish();
+    }
+
+    /**
+     * Thrown from inside our handler to stop the SAX parser once every
+     * parameter block we need has been read.
+     */
+    private static class CompletedException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public CompletedException() {
+            super("Completed early");
+        }
+    }
+
+    private static class DwmlHandler extends DefaultHandler {
+        private final DwmlCollector mCollector = new DwmlCollector();
+        private final ParseStats mStats;
+        private final boolean mEarlyExit;
+
+        private final StringBuilder mText = new StringBuilder();
+        private int mTextTag = DwmlTagTable.CODE_OTHER;
+        private int mSkipDepth = 0;
+
+        private ParseException mError = null;
+
+        public DwmlHandler(ParseStats stats, boolean earlyExit) {
+            mStats = stats;
+            mEarlyExit = earlyExit;
+        }
+
+        private static String getName(String localName, String qName) {
+            return (localName != null && localName.length() > 0) ? localName : qName;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+            if (mSkipDepth > 0) {
+                mSkipDepth++;
+                mStats.eventsSkipped++;
+                return;
+            }
+
+            flushText();
+            mStats.eventsProcessed++;
+
+            int tag = DwmlTagTable.lookup(getName(localName, qName));
+            mTextTag = DwmlTagTable.CODE_OTHER;
+            switch (tag) {
+                case DwmlTagTable.CODE_SKIPPED: {
+                    mSkipDepth = 1;
+                    break;
+                }
+                case DwmlTagTable.CODE_TEMPERATURE: {
+                    String type = attributes.getValue(ATTR_TYPE);
+                    int block = DwmlCollector.BLOCK_NONE;
+                    if (TYPE_MAXIMUM.equals(type)) {
+                        block = DwmlCollector.BLOCK_MAXIMUM;
+                    } else if (TYPE_MINIMUM.equals(type)) {
+                        block = DwmlCollector.BLOCK_MINIMUM;
+                    }
+                    mCollector.beginBlock(block, attributes.getValue(ATTR_TIME_LAYOUT));
+                    break;
+                }
+                case DwmlTagTable.CODE_WEATHER: {
+                    mCollector.beginBlock(DwmlCollector.BLOCK_WEATHER,
+                            attributes.getValue(ATTR_TIME_LAYOUT));
+                    break;
+                }
+                case DwmlTagTable.CODE_HAZARDS: {
+                    mCollector.beginBlock(DwmlCollector.BLOCK_HAZARDS,
+                            attributes.getValue(ATTR_TIME_LAYOUT));
+                    break;
+                }
+                case DwmlTagTable.CODE_WEATHER_CONDITIONS: {
+                    mCollector.addConditions(attributes.getValue(ATTR_WEATHER_SUMMARY));
+                    break;
+                }
+                case DwmlTagTable.CODE_HAZARD: {
+                    mCollector.addHazard(attributes.getValue(ATTR_PHENOMENA),
+                            attributes.getValue(ATTR_SIGNIFICANCE));
+                    break;
+                }
+                default: {
+                    if (DwmlTagTable.isTextTag(tag)) {
+                        mTextTag = tag;
+                    }
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (mSkipDepth > 0) {
+                mSkipDepth--;
+                mStats.eventsSkipped++;
+                return;
+            }
+
+            flushText();
+            mStats.eventsProcessed++;
+            mTextTag = DwmlTagTable.CODE_OTHER;
+
+            int tag = DwmlTagTable.lookup(getName(localName, qName));
+            if (DwmlTagTable.isBlockTag(tag)) {
+                mCollector.endBlock();
+            } else if (tag == DwmlTagTable.CODE_PARAMETERS) {
+                mCollector.endParameters();
+            }
+
+            if (mEarlyExit && mCollector.isComplete()) {
+                throw new CompletedException();
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (mSkipDepth > 0) {
+                mStats.eventsSkipped++;
+            } else if (mTextTag != DwmlTagTable.CODE_OTHER) {
+                mText.append(ch, start, length);
+            }
+        }
+
+        /**
+         * Dispatch any text buffered for the current element.
+         */
+        private void flushText() throws SAXException {
+            if (mTextTag == DwmlTagTable.CODE_OTHER || mText.length() == 0) {
+                return;
+            }
+
+            String text = mText.toString();
+            mText.setLength(0);
+            mStats.eventsProcessed++;
+
+            try {
+                switch (mTextTag) {
+                    case DwmlTagTable.CODE_LAYOUT_KEY:
+                        mCollector.beginLayout(text);
+                        break;
+                    case DwmlTagTable.CODE_START_VALID_TIME:
+                        mCollector.addValidStart(DwmlTimestamp.parse(text));
+                        break;
+                    case DwmlTagTable.CODE_VALUE: {
+                        int block = mCollector.getBlock();
+                        if (block == DwmlCollector.BLOCK_MAXIMUM
+                                || block == DwmlCollector.BLOCK_MINIMUM) {
+                            mCollector.addTemperature(DwmlCollector.parseTemperature(text));
+                        }
+                        break;
+                    }
+                    case DwmlTagTable.CODE_HAZARDTEXTURL:
+                        mCollector.setHazardUrl(text);
+                        break;
+                    case DwmlTagTable.CODE_MOREWEATHERINFORMATION:
+                        mCollector.setDetailsUrl(text);
+                        break;
+                }
+            } catch (ParseException e) {
+                // Stash our checked exception so it can be rethrown as-is
+                mError = e;
+                throw new SAXException(e);
+            }
+        }
+    }
+}
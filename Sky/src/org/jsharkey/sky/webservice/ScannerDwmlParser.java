@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.InputStream;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * {@link DwmlParser} that reads the response directly from its raw bytes
+ * using a {@link DwmlScanner} confined to the calling thread.
+ */
+public class ScannerDwmlParser implements DwmlParser {
+    private final boolean mEarlyExit;
+
+    /**
+     * Create a parser.
+     *
+     * @param earlyExit If true, stop reading as soon as every parameter block
+     *            we need has been read.
+     */
+    public ScannerDwmlParser(boolean earlyExit) {
+        mEarlyExit = earlyExit;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ForecastBatch parse(InputStream response, ParseStats stats) throws ParseException {
+        return DwmlScanner.obtain().parse(response, stats, mEarlyExit);
+    }
+}
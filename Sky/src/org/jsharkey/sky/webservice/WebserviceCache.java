@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Bounded on-disk cache of webservice response bodies, keyed by request URL.
+ * Each entry expires after its own TTL, and the least recently used entries
+ * are evicted once the total size passes a limit.
+ * <p>
+ * Entries are written beside their final name and renamed into place, so
+ * readers never see a partial body. Bodies are stored already decoded, and
+ * are served back as a stream straight into the parser.
+ */
+public class WebserviceCache {
+    private static final String TAG = "WebserviceCache";
+
+    /**
+     * Leading bytes of every entry, spelling "SKYC".
+     */
+    private static final int MAGIC = 0x534b5943;
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    /**
+     * Size of each entry on disk, keyed by file name and kept in access
+     * order so the eldest entry is the least recently used.
+     */
+    private final LinkedHashMap<String, Long> mSizes = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+    private long mTotalBytes = 0;
+    private boolean mLoaded = false;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+
+    /**
+     * Create a cache that stores entries in the given directory, holding at
+     * most the given number of bytes.
+     */
+    public WebserviceCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Largest single body we're willing to store, so one response can't
+     * flush everything else out of the cache.
+     */
+    long getMaxEntryBytes() {
+        return mMaxBytes / 2;
+    }
+
+    /**
+     * Number of lookups that found a fresh entry.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Number of lookups that found nothing, or only an expired entry.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Number of entries removed to stay under the size limit.
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Total size of all entries currently stored.
+     */
+    public synchronized long getSize() {
+        ensureLoaded();
+        return mTotalBytes;
+    }
+
+    /**
+     * Look up a fresh entry for the given URL, returning null if there isn't
+     * one. The caller must close the returned entry.
+     */
+    public Entry get(String url) {
+        String key = keyFor(url);
+        File file = new File(mDir, key);
+
+        synchronized (this) {
+            ensureLoaded();
+            if (!mSizes.containsKey(key)) {
+                mMissCount++;
+                return null;
+            }
+        }
+
+        Entry entry = null;
+        try {
+            entry = Entry.open(file, url);
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading cache entry for " + url, e);
+        }
+
+        synchronized (this) {
+            if (entry == null || entry.mExpires < System.currentTimeMillis()) {
+                if (entry != null) {
+                    entry.close();
+                }
+                removeLocked(key);
+                mMissCount++;
+                return null;
+            }
+
+            // Touch so the entry survives as recently used across restarts
+            mSizes.get(key);
+            file.setLastModified(System.currentTimeMillis());
+            mHitCount++;
+            return entry;
+        }
+    }
+
+    /**
+     * Start writing a new entry for the given URL. Bytes written become
+     * visible only once {@link Writer#commit()} is called.
+     *
+     * @param ttl Milliseconds until this entry expires.
+     */
+    Writer edit(String url, long ttl, String etag, String lastModified) throws IOException {
+        synchronized (this) {
+            // Load before our temp file exists, otherwise it looks like a
+            // leftover from an interrupted write and gets cleaned up
+            ensureLoaded();
+        }
+        mDir.mkdirs();
+        File temp = File.createTempFile(keyFor(url), SUFFIX_TEMP, mDir);
+        Writer writer = new Writer(this, url, temp);
+        try {
+            DataOutputStream out = writer.mOut;
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(url);
+            out.writeLong(System.currentTimeMillis() + ttl);
+            writeString(out, etag);
+            writeString(out, lastModified);
+        } catch (IOException e) {
+            writer.discard();
+            throw e;
+        }
+        return writer;
+    }
+
+    /**
+     * Remove any entry stored for the given URL, such as after its body
+     * failed to parse.
+     */
+    public synchronized void remove(String url) {
+        ensureLoaded();
+        removeLocked(keyFor(url));
+    }
+
+    /**
+     * Remove every entry.
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+        for (String key : mSizes.keySet()) {
+            new File(mDir, key).delete();
+        }
+        mSizes.clear();
+        mTotalBytes = 0;
+    }
+
+    /**
+     * Move a finished entry into place, evicting older entries as needed.
+     */
+    private synchronized void commit(String url, File temp) throws IOException {
+        ensureLoaded();
+        String key = keyFor(url);
+        File target = new File(mDir, key);
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Couldn't replace cache entry " + target);
+        }
+
+        Long previous = mSizes.put(key, target.length());
+        if (previous != null) {
+            mTotalBytes -= previous;
+        }
+        mTotalBytes += target.length();
+
+        Iterator<Map.Entry<String, Long>> iter = mSizes.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            new File(mDir, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            mEvictionCount++;
+            iter.remove();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Long size = mSizes.remove(key);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        new File(mDir, key).delete();
+    }
+
+    /**
+     * Build our index from the entries already on disk, treating their
+     * modification time as their last use. Leftover temporary files from an
+     * interrupted write are cleaned up.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File left, File right) {
+                long delta = left.lastModified() - right.lastModified();
+                return (delta < 0) ? -1 : (delta > 0) ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX_TEMP)) {
+                file.delete();
+            } else {
+                mSizes.put(file.getName(), file.length());
+                mTotalBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * Turn a URL into a file name that's safe on any filesystem.
+     */
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Fresh entry found in the cache, with its body ready to be read.
+     */
+    public static class Entry {
+        private final DataInputStream mBody;
+        private final long mExpires;
+        private final String mEtag;
+        private final String mLastModified;
+
+        private Entry(DataInputStream body, long expires, String etag, String lastModified) {
+            mBody = body;
+            mExpires = expires;
+            mEtag = etag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * Open the given file, reading its header and leaving the stream at
+         * the start of the body. Fails if the file was stored for another
+         * URL.
+         */
+        static Entry open(File file, String url) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 8192));
+            try {
+                if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                    throw new IOException("Not a cache entry");
+                }
+                if (!url.equals(in.readUTF())) {
+                    throw new IOException("Cache entry stored for different URL");
+                }
+                long expires = in.readLong();
+                String etag = readString(in);
+                String lastModified = readString(in);
+                return new Entry(in, expires, etag, lastModified);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Stream across the stored response body.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * Value of the <code>ETag</code> stored with this response, or null.
+         */
+        public String getEtag() {
+            return mEtag;
+        }
+
+        /**
+         * Value of the <code>Last-Modified</code> stored with this response,
+         * or null.
+         */
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Return true if the given validators describe this exact response,
+         * meaning it was already parsed and stored.
+         */
+        public boolean matches(CacheValidators validators) {
+            if (validators == null || !validators.hasValidators()) {
+                return false;
+            }
+            return equals(mEtag, validators.getEtag())
+                    && equals(mLastModified, validators.getLastModified());
+        }
+
+        private static boolean equals(String left, String right) {
+            return (left == null) ? right == null : left.equals(right);
+        }
+
+        public void close() {
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Problem closing cache entry", e);
+            }
+        }
+    }
+
+    /**
+     * Entry being written. Bodies larger than
+     * {@link WebserviceCache#getMaxEntryBytes()} are quietly abandoned.
+     */
+    static class Writer {
+        private final WebserviceCache mCache;
+        private final String mUrl;
+        private final File mTemp;
+        private final DataOutputStream mOut;
+
+        private long mBodyBytes = 0;
+        private boolean mAbandoned = false;
+
+        private Writer(WebserviceCache cache, String url, File temp) throws IOException {
+            mCache = cache;
+            mUrl = url;
+            mTemp = temp;
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp), 8192));
+        }
+
+        /**
+         * Append body bytes to this entry.
+         */
+        void write(byte[] buffer, int offset, int length) {
+            if (mAbandoned) {
+                return;
+            }
+
+            mBodyBytes += length;
+            if (mBodyBytes > mCache.getMaxEntryBytes()) {
+                discard();
+                return;
+            }
+
+            try {
+                mOut.write(buffer, offset, length);
+            } catch (IOException e) {
+                Log.w(TAG, "Problem writing cache entry for " + mUrl, e);
+                discard();
+            }
+        }
+
+        /**
+         * Finish this entry and make it visible to readers.
+         */
+        void commit() {
+            if (mAbandoned) {
+                return;
+            }
+
+            try {
+                mOut.close();
+                mCache.commit(mUrl, mTemp);
+            } catch (IOException e) {
+                Log.w(TAG, "Problem storing cache entry for " + mUrl, e);
+                mTemp.delete();
+            }
+            mAbandoned = true;
+        }
+
+        /**
+         * Throw away this entry without making it visible.
+         */
+        void discard() {
+            if (mAbandoned) {
+                return;
+            }
+            mAbandoned = true;
+
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+            mTemp.delete();
+        }
+    }
+}
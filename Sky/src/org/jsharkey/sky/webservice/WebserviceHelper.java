@@ -16,17 +16,52 @@
 
 package org.jsharkey.sky.webservice;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
 import org.jsharkey.sky.ForecastProvider;
 import org.jsharkey.sky.ForecastUtils;
 import org.jsharkey.sky.R;
@@ -37,6 +72,7 @@ import org.jsharkey.sky.ForecastProvider.ForecastsColumns;
 import org.jsharkey.sky.webservice.Forecast.ParseException;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageInfo;
@@ -57,28 +93,526 @@ public class WebserviceHelper {
     private static final String[] PROJECTION_APPWIDGET = {
         AppWidgetsColumns.LAT,
         AppWidgetsColumns.LON,
-        AppWidgetsColumns.COUNTRY_CODE
+        AppWidgetsColumns.COUNTRY_CODE,
+        AppWidgetsColumns.ETAG,
+        AppWidgetsColumns.LAST_MODIFIED
     };
 
     private static final int COL_LAT = 0;
     private static final int COL_LON = 1;
     private static final int COL_COUNTRY_CODE = 2;
+    private static final int COL_ETAG = 3;
+    private static final int COL_LAST_MODIFIED = 4;
     
     public static final String COUNTRY_US = "US";
 
     /**
      * Timeout to wait for webservice to respond. Because we're in the
-     * background, we don't mind waiting for good data.
+     * background, we don't mind waiting for good data. This and the other
+     * timeouts are defaults, see {@link #setTimeouts(long, long, long)}.
      */
     static final long WEBSERVICE_TIMEOUT = 30 * DateUtils.SECOND_IN_MILLIS;
 
+    /**
+     * Timeout to wait while opening a connection to the webservice.
+     */
+    static final long CONNECT_TIMEOUT = 15 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Timeout to wait for a pooled connection to become free when every
+     * connection is already busy with another refresh.
+     */
+    static final long POOL_TIMEOUT = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * How long to keep an idle connection around for reuse when the server
+     * doesn't tell us itself.
+     */
+    static final long KEEP_ALIVE = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Most connections to keep open at once, which all go to the same host.
+     */
+    static final int MAX_CONNECTIONS = 4;
+
+    /**
+     * Threads in {@link #getExecutor()} by default. Each fetches a response
+     * and parses it as it streams in, so there's no use in having more than
+     * {@link #MAX_CONNECTIONS}.
+     */
+    static final int WORKER_THREADS = MAX_CONNECTIONS;
+
+    /**
+     * Most tasks {@link #getExecutor()} queues up for its threads. Past that,
+     * whoever submits runs the task itself, which slows them down instead of
+     * letting the queue grow without limit.
+     */
+    static final int WORKER_QUEUE_SIZE = 32;
+
+    /**
+     * Threads in {@link #getAttemptExecutor()}, enough for every worker to
+     * have a source and its hedge in flight.
+     */
+    static final int ATTEMPT_THREADS = WORKER_THREADS * 2;
+
+    /**
+     * Longest a single forecast update may take across every source it
+     * tries, including retries, before giving up until the next update.
+     */
+    static final long SOURCE_DEADLINE = 60 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * How long a source may go without answering before the next source
+     * covering the same location is tried alongside it.
+     */
+    static final long SOURCE_HEDGE_DELAY = 15 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * How long to serve a cached response when the webservice doesn't give a
+     * <code>max-age</code>. NOAA regenerates forecasts hourly.
+     */
+    static final long CACHE_TTL = DateUtils.HOUR_IN_MILLIS;
+
+    /**
+     * Most bytes of responses to keep in {@link WebserviceCache}.
+     */
+    static final long CACHE_MAX_BYTES = 512 * 1024;
+
+    private static final String DIR_CACHE = "webservice";
+
+    /**
+     * Most times to try a request that fails to connect, times out, or gets
+     * a server error back.
+     */
+    static final int RETRY_ATTEMPTS = 3;
+
+    /**
+     * Delay before the first retry, doubled for each retry after that.
+     */
+    static final long RETRY_BASE_DELAY = 2 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Longest we'll wait between two attempts.
+     */
+    static final long RETRY_MAX_DELAY = 20 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Requests per second we allow ourselves to send, so a burst of widget
+     * updates doesn't hammer the webservice.
+     */
+    static final double RATE_LIMIT = 1.0;
+
+    /**
+     * Requests that can go out back-to-back before {@link #RATE_LIMIT}
+     * applies.
+     */
+    static final int RATE_BURST = 4;
+
+    /**
+     * Failures in a row before we stop sending requests to a host.
+     */
+    static final int BREAKER_THRESHOLD = 5;
+
+    /**
+     * How long to leave a failing host alone before trying it again.
+     */
+    static final long BREAKER_OPEN_INTERVAL = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Most finished requests to keep {@link RequestMetrics} for.
+     */
+    static final int REQUEST_LOG_SIZE = 64;
+
     /**
      * User-agent string to use when making requests. Should be filled using
      * {@link #prepareUserAgent(Context)} before making any other calls.
      */
     private static String sUserAgent = null;
     
-    private static HttpClient sClient = new DefaultHttpClient();
+    /**
+     * Scheme and host to send every request to instead of the one in its
+     * URL, or null to use URLs as given. Set through
+     * {@link #setEndpoint(String)}.
+     */
+    private static volatile String sEndpoint = null;
+
+    /**
+     * Client sending every request, replaced whenever the timeouts change.
+     */
+    private static volatile HttpClient sClient = createHttpClient(CONNECT_TIMEOUT,
+            WEBSERVICE_TIMEOUT, POOL_TIMEOUT);
+
+    /**
+     * Connection pools of clients replaced by
+     * {@link #setTimeouts(long, long, long)} that still had connections
+     * leased, waiting to be shut down once they're all back.
+     */
+    private static final List<ThreadSafeClientConnManager> sRetiredManagers =
+            new ArrayList<ThreadSafeClientConnManager>();
+
+    /**
+     * Requests that have picked {@link #sClient} but may not have leased a
+     * connection from it yet, so no pool can be safely shut down.
+     */
+    private static final AtomicInteger sStartingRequests = new AtomicInteger();
+
+    /**
+     * Cache of response bodies, or null until {@link #prepareCache(Context)}
+     * has been called.
+     */
+    private static volatile WebserviceCache sCache = null;
+
+    /**
+     * Shares requests between widgets showing forecasts for the same point.
+     */
+    private static final ForecastCoalescer sCoalescer = new ForecastCoalescer();
+
+    /**
+     * {@link CircuitBreaker} for each host we've made requests to.
+     */
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<String, CircuitBreaker>();
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Paces every request we send, including retries.
+     */
+    private static final RateLimiter sLimiter = new RateLimiter(RATE_LIMIT, RATE_BURST);
+
+    /**
+     * Number of tasks {@link #sExecutor} handed back to run on the thread
+     * that submitted them, because its queue was full.
+     */
+    private static final AtomicInteger sOverflowCount = new AtomicInteger();
+
+    /**
+     * Runs asynchronous queries and updates on a fixed number of threads,
+     * queueing up to {@link #WORKER_QUEUE_SIZE} more and running anything
+     * beyond that on the thread submitting it.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(WORKER_THREADS,
+            WORKER_THREADS, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(WORKER_QUEUE_SIZE), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WebserviceWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    sOverflowCount.incrementAndGet();
+                    super.rejectedExecution(runnable, executor);
+                }
+            });
+
+    /**
+     * Runs {@link FallbackSource} attempts, apart from {@link #sExecutor} so
+     * a chain running there can hedge instead of waiting behind itself.
+     * Attempts never wait on other queued work, so the queue always drains,
+     * and each chain queues at most one attempt per source.
+     */
+    private static final ThreadPoolExecutor sAttemptExecutor = new ThreadPoolExecutor(
+            ATTEMPT_THREADS, ATTEMPT_THREADS, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new AttemptThread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Thread of {@link #sAttemptExecutor}, told apart so a chain nested
+     * inside an attempt doesn't queue attempts behind itself and wait on
+     * them.
+     */
+    private static class AttemptThread extends Thread {
+        AttemptThread(Runnable runnable) {
+            super(runnable, "WebserviceAttempt");
+        }
+    }
+
+    /**
+     * Metrics of the most recent requests, for diagnostics.
+     */
+    private static final RequestLog sRequestLog = new RequestLog(REQUEST_LOG_SIZE);
+
+    /**
+     * Milliseconds the last connection opened on this thread took to resolve
+     * and connect, or {@link RequestMetrics#UNKNOWN} if none was opened.
+     */
+    private static final ThreadLocal<Long> sConnectTime = new ThreadLocal<Long>();
+
+    /**
+     * Deadline and cancellation for requests made on this thread, if any.
+     */
+    private static final ThreadLocal<RequestControl> sRequestControl =
+            new ThreadLocal<RequestControl>();
+
+    /**
+     * Plain socket factory that records how long each connection took to
+     * open into {@link #sConnectTime}.
+     */
+    private static class TimingSocketFactory implements SocketFactory {
+        private final SocketFactory mWrapped = PlainSocketFactory.getSocketFactory();
+
+        public Socket createSocket() throws IOException {
+            return mWrapped.createSocket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                int localPort, HttpParams params) throws IOException, UnknownHostException,
+                ConnectTimeoutException {
+            long start = System.nanoTime();
+            Socket socket = mWrapped.connectSocket(sock, host, port, localAddress, localPort,
+                    params);
+            sConnectTime.set((System.nanoTime() - start) / 1000000);
+            return socket;
+        }
+
+        public boolean isSecure(Socket sock) throws IllegalArgumentException {
+            return mWrapped.isSecure(sock);
+        }
+    }
+
+    /**
+     * Create an {@link HttpClient} backed by a thread-safe pool of keep-alive
+     * connections, so parallel refreshes can share warm connections. Every
+     * timeout is in milliseconds, and covers opening a connection, waiting
+     * between bytes of the response, and waiting for a free pooled
+     * connection, respectively.
+     */
+    static HttpClient createHttpClient(long connectTimeout, long readTimeout,
+            long poolTimeout) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, (int)connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, (int)readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setTimeout(params, poolTimeout);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(MAX_CONNECTIONS));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", new TimingSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+
+        // We retry ourselves, through the rate limiter, so a request we've
+        // aborted must stay aborted
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // Respect any Keep-Alive header, otherwise use our own limit
+                long duration = super.getKeepAliveDuration(response, context);
+                return (duration > 0) ? duration : KEEP_ALIVE;
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Close any pooled connections that have sat idle longer than
+     * {@link #KEEP_ALIVE}, which the server has likely dropped already.
+     */
+    public static void closeIdleConnections() {
+        sClient.getConnectionManager().closeIdleConnections(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        closeRetiredConnections();
+    }
+
+    /**
+     * Close every idle connection of retired pools, shutting down any pool
+     * that has no connections left leased.
+     */
+    private static void closeRetiredConnections() {
+        synchronized (sRetiredManagers) {
+            if (sRetiredManagers.isEmpty() || sStartingRequests.get() > 0) {
+                return;
+            }
+            Iterator<ThreadSafeClientConnManager> iterator = sRetiredManagers.iterator();
+            while (iterator.hasNext()) {
+                ThreadSafeClientConnManager manager = iterator.next();
+                manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                if (manager.getConnectionsInPool() == 0) {
+                    manager.shutdown();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return how many retired connection pools are still waiting on leased
+     * connections before being shut down.
+     */
+    static int getRetiredPoolCount() {
+        synchronized (sRetiredManagers) {
+            return sRetiredManagers.size();
+        }
+    }
+
+    /**
+     * Return the {@link CircuitBreaker} guarding requests to the given host,
+     * creating it if needed.
+     */
+    public static CircuitBreaker getCircuitBreaker(String host) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(BREAKER_THRESHOLD, BREAKER_OPEN_INTERVAL);
+                sBreakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Change how fast requests may be sent, in requests per second, and how
+     * many may go out back-to-back.
+     */
+    public static void setRateLimit(double perSecond, int burst) {
+        sLimiter.setRate(perSecond, burst);
+    }
+
+    /**
+     * Change how long requests wait while connecting, between bytes of a
+     * response, and for a free pooled connection, all in milliseconds.
+     * Requests already running keep their old timeouts and finish on the old
+     * connection pool, which is shut down once the last of their responses
+     * has been closed.
+     */
+    public static synchronized void setTimeouts(long connectTimeout, long readTimeout,
+            long poolTimeout) {
+        if (connectTimeout <= 0 || readTimeout <= 0 || poolTimeout <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive");
+        }
+        HttpClient previous = sClient;
+        sClient = createHttpClient(connectTimeout, readTimeout, poolTimeout);
+        synchronized (sRetiredManagers) {
+            sRetiredManagers.add((ThreadSafeClientConnManager)previous.getConnectionManager());
+        }
+        closeRetiredConnections();
+    }
+
+    /**
+     * Return the {@link RateLimiter} pacing our requests.
+     */
+    public static RateLimiter getRateLimiter() {
+        return sLimiter;
+    }
+
+    /**
+     * Return the bounded executor that runs {@link AsyncForecastSource}
+     * queries and {@link #updateForecastsAsync(Context, Uri, int)}. When its
+     * queue is full, work submitted runs on the submitting thread instead.
+     */
+    public static Executor getExecutor() {
+        return sExecutor;
+    }
+
+    /**
+     * Return the executor that runs each {@link FallbackSource} attempt,
+     * kept apart from {@link #getExecutor()}.
+     */
+    static Executor getAttemptExecutor() {
+        return sAttemptExecutor;
+    }
+
+    /**
+     * Return true if the calling thread belongs to
+     * {@link #getAttemptExecutor()}. Work running there must not wait on
+     * anything it queues to the same executor, since every thread might end
+     * up waiting.
+     */
+    static boolean isAttemptThread() {
+        return Thread.currentThread() instanceof AttemptThread;
+    }
+
+    /**
+     * Bound and allow cancelling every request made on the calling thread
+     * with the given control, or pass null to remove it again.
+     */
+    static void setRequestControl(RequestControl control) {
+        if (control != null) {
+            sRequestControl.set(control);
+        } else {
+            sRequestControl.remove();
+        }
+    }
+
+    /**
+     * Change how many threads {@link #getExecutor()} runs queries on. Going
+     * past {@link #MAX_CONNECTIONS} only leaves threads waiting for a pooled
+     * connection.
+     */
+    public static synchronized void setWorkerThreads(int threads) {
+        threads = Math.max(threads, 1);
+        if (threads > sExecutor.getMaximumPoolSize()) {
+            sExecutor.setMaximumPoolSize(threads);
+            sExecutor.setCorePoolSize(threads);
+        } else {
+            sExecutor.setCorePoolSize(threads);
+            sExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Return the {@link RequestLog} holding metrics of recent requests.
+     */
+    public static RequestLog getRequestLog() {
+        return sRequestLog;
+    }
+
+    /**
+     * Describe the state of every {@link CircuitBreaker}, the
+     * {@link RateLimiter}, the executor, any unreleased responses, recent
+     * request timings and the {@link WebserviceCache}, suitable for logging.
+     */
+    public static String getDiagnostics() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (sBreakers) {
+            for (Map.Entry<String, CircuitBreaker> entry : sBreakers.entrySet()) {
+                builder.append(entry.getKey()).append(" [").append(entry.getValue()).append("] ");
+            }
+        }
+        builder.append("limiter [").append(sLimiter).append("] ");
+        builder.append("executor [threads=").append(sExecutor.getPoolSize()).append(", active=")
+                .append(sExecutor.getActiveCount()).append(", queued=")
+                .append(sExecutor.getQueue().size()).append(", completed=")
+                .append(sExecutor.getCompletedTaskCount()).append(", overflowed=")
+                .append(sOverflowCount.get()).append("] ");
+        builder.append("responses [outstanding=")
+                .append(WebserviceResponse.getOutstandingCount()).append(", stale=")
+                .append(WebserviceResponse.checkStale(System.currentTimeMillis())).append("] ");
+        builder.append("requests [").append(sRequestLog.summarize()).append("] ");
+
+        WebserviceCache cache = sCache;
+        if (cache != null) {
+            builder.append("cache [hits=").append(cache.getHitCount()).append(", misses=")
+                    .append(cache.getMissCount()).append(", evictions=")
+                    .append(cache.getEvictionCount()).append(']');
+        }
+        return builder.toString().trim();
+    }
+
+    /**
+     * Return how long to wait before retrying after the given number of
+     * failed attempts. The delay doubles with each attempt up to
+     * {@link #RETRY_MAX_DELAY}, and is randomized across its upper half so
+     * widgets that failed together don't all retry together.
+     */
+    static long getRetryDelay(int attempt) {
+        long delay = Math.min(RETRY_BASE_DELAY << Math.min(attempt, 16), RETRY_MAX_DELAY);
+        double jitter;
+        synchronized (sRandom) {
+            jitter = sRandom.nextDouble();
+        }
+        return delay / 2 + (long)(jitter * (delay / 2));
+    }
 
     /**
      * Prepare the internal User-Agent string for use. This requires a
@@ -99,32 +633,442 @@ public class WebserviceHelper {
     }
     
     /**
-     * Open a request to the given URL, returning a {@link Reader} across the
-     * response from that API.
+     * Set the User-Agent string directly, for harnesses running without a
+     * {@link Context}.
+     */
+    static void setUserAgent(String userAgent) {
+        sUserAgent = userAgent;
+    }
+
+    /**
+     * Send every request to the given scheme and host, such as
+     * <code>http://127.0.0.1:8080</code>, keeping the path and query of each
+     * URL. Useful for pointing at a local stand-in for the webservice. Pass
+     * null to go back to the real hosts.
+     */
+    public static void setEndpoint(String endpoint) {
+        sEndpoint = endpoint;
+    }
+
+    /**
+     * Return the URL a request for the given URL is actually sent to, after
+     * applying any {@link #setEndpoint(String)}.
      */
-    public static Reader queryApi(String url) throws ParseException {
+    static String resolveEndpoint(String url) {
+        String endpoint = sEndpoint;
+        if (endpoint == null) {
+            return url;
+        }
+
+        int scheme = url.indexOf("://");
+        int path = (scheme == -1) ? -1 : url.indexOf('/', scheme + 3);
+        return endpoint + ((path == -1) ? "/" : url.substring(path));
+    }
+
+    /**
+     * Prepare the on-disk {@link WebserviceCache} for use. This requires a
+     * {@link Context} to find the cache directory of this application.
+     */
+    public static synchronized void prepareCache(Context context) {
+        if (sCache == null) {
+            sCache = new WebserviceCache(new File(context.getCacheDir(), DIR_CACHE),
+                    CACHE_MAX_BYTES);
+        }
+    }
+
+    /**
+     * Return the on-disk response cache, or null if it hasn't been prepared.
+     */
+    public static WebserviceCache getCache() {
+        return sCache;
+    }
+
+    /**
+     * Remove any cached response for the given URL, such as after its body
+     * failed to parse.
+     */
+    public static void invalidateCache(String url) {
+        WebserviceCache cache = sCache;
+        if (cache != null) {
+            cache.remove(resolveEndpoint(url));
+        }
+    }
+
+    /**
+     * Open a request to the given URL, returning an {@link InputStream} across
+     * the response bytes from that API. We ask for a compressed response, and
+     * any content encoding is decoded as the stream is read. The caller must
+     * finish with {@link #closeStream(InputStream)} or
+     * {@link #abortStream(InputStream)}, which
+     * {@link #queryApi(String, CacheValidators, ParseStats, WebserviceResponse.Handler)}
+     * takes care of.
+     */
+    public static InputStream queryApiStream(String url) throws ParseException {
+        return queryApiStream(url, null);
+    }
+
+    /**
+     * Open a conditional request to the given URL, sending any of the given
+     * validators. Returns null when the webservice answers with
+     * <code>304 Not Modified</code>, after marking the validators as
+     * {@link CacheValidators#isNotModified()}. Otherwise the validators are
+     * replaced with those returned alongside the new response.
+     * <p>
+     * Fresh responses in the {@link WebserviceCache} are served without
+     * touching the network, and successful responses are stored there as
+     * they're read. Failed requests are retried with backoff, and refused
+     * while their host keeps failing.
+     */
+    public static InputStream queryApiStream(String url, CacheValidators validators)
+            throws ParseException {
+        return queryApiStream(url, validators, null);
+    }
+
+    /**
+     * Open a conditional request like
+     * {@link #queryApiStream(String, CacheValidators)}, filling any given
+     * metrics with the status, attempts and timings up to the response
+     * headers.
+     */
+    static InputStream queryApiStream(String url, CacheValidators validators,
+            RequestMetrics metrics) throws ParseException {
         if (sUserAgent == null) {
             throw new ParseException("Must prepare user agent string");
         }
-        
-        Reader reader = null;
-        HttpGet request = new HttpGet(url);
-        request.setHeader("User-Agent", sUserAgent);
+        url = resolveEndpoint(url);
 
-        try {
-            HttpResponse response = sClient.execute(request);
+        WebserviceCache cache = sCache;
+        if (cache != null) {
+            WebserviceCache.Entry cached = cache.get(url);
+            if (cached != null) {
+                Log.d(TAG, "Serving cached response for " + url);
+                if (metrics != null) {
+                    metrics.cached = true;
+                    metrics.firstByteTime = metrics.elapsed();
+                }
+                if (validators != null) {
+                    if (cached.matches(validators)) {
+                        // Already parsed and stored this exact response
+                        cached.close();
+                        validators.setNotModified();
+                        return null;
+                    }
+                    validators.update(cached.getEtag(), cached.getLastModified());
+                }
+                return cached.getBody();
+            }
+        }
 
+        HttpGet request = newRequest(url, validators);
+        HttpResponse response = execute(request, metrics);
+        boolean handedOff = false;
+        try {
             StatusLine status = response.getStatusLine();
             Log.d(TAG, "Request returned status " + status);
+            if (metrics != null) {
+                metrics.firstByteTime = metrics.elapsed();
+            }
 
             HttpEntity entity = response.getEntity();
-            reader = new InputStreamReader(entity.getContent());
+            if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                // Nothing changed, so release the connection for reuse
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                handedOff = true;
+                if (validators == null || !validators.hasValidators()) {
+                    // Some cache along the way answered for a copy we never had
+                    throw new ParseException("Forecast API returned " + status
+                            + " to an unconditional request");
+                }
+                validators.setNotModified();
+                return null;
+            }
+            if (entity == null) {
+                throw new ParseException("Forecast API returned " + status + " without a body");
+            }
+
+            String etag = getHeader(response, "ETag");
+            String lastModified = getHeader(response, "Last-Modified");
+            if (validators != null) {
+                validators.update(etag, lastModified);
+            }
+
+            Header encoding = entity.getContentEncoding();
+            ResponseStream body = ResponseStream.wrap(entity.getContent(),
+                    (encoding != null) ? encoding.getValue() : null);
+
+            long ttl = getCacheTtl(response);
+            if (cache != null && status.getStatusCode() == HttpStatus.SC_OK && ttl > 0) {
+                try {
+                    body.setCacheWriter(cache.edit(url, ttl, etag, lastModified));
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem opening cache entry for " + url, e);
+                }
+            }
+            handedOff = true;
+            return body;
 
         } catch (IOException e) {
             throw new ParseException("Problem calling forecast API", e);
+        } finally {
+            if (!handedOff) {
+                // Nobody will ever read this response, so drop its connection
+                request.abort();
+            }
         }
-        
-        return reader;
+    }
+
+    /**
+     * Make a request to the given URL, retrying with backoff when it fails to
+     * connect, times out, or gets a server error back. Requests are refused
+     * outright while the {@link CircuitBreaker} for the host is open, and
+     * every attempt waits its turn with the {@link RateLimiter}. Any given
+     * metrics are filled with the attempts made and the status and connect
+     * time of the last one.
+     * <p>
+     * When the calling thread has a {@link RequestControl}, no retry is
+     * started that would wait past its deadline, and a request it aborts
+     * fails without counting against the host.
+     */
+    private static HttpResponse execute(HttpGet request, RequestMetrics metrics)
+            throws ParseException {
+        String host = request.getURI().getHost();
+        CircuitBreaker breaker = getCircuitBreaker(host);
+        int permit = breaker.allowRequest(System.currentTimeMillis());
+        if (permit == CircuitBreaker.PERMIT_REFUSED) {
+            throw new ParseException("Skipping request while " + host + " is failing");
+        }
+
+        // When we're the trial request, make sure we always hand the trial
+        // back, even if we're interrupted or the client throws
+        boolean trial = (permit == CircuitBreaker.PERMIT_TRIAL);
+        boolean recorded = false;
+        RequestControl control = sRequestControl.get();
+        try {
+            for (int attempt = 0;; attempt++) {
+                if (control != null && !control.attach(request)) {
+                    throw new ParseException("Request cancelled");
+                }
+                try {
+                    long waited = sLimiter.acquire();
+                    if (waited > 0) {
+                        Log.d(TAG, "Waited " + waited + "ms for rate limiter");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ParseException("Interrupted waiting for rate limiter", e);
+                }
+
+                ParseException failure;
+                sConnectTime.set(RequestMetrics.UNKNOWN);
+                try {
+                    if (metrics != null) {
+                        metrics.attempts++;
+                    }
+                    HttpResponse response;
+                    sStartingRequests.incrementAndGet();
+                    try {
+                        response = sClient.execute(request);
+                    } finally {
+                        sStartingRequests.decrementAndGet();
+                    }
+                    StatusLine status = response.getStatusLine();
+                    if (metrics != null) {
+                        metrics.status = status.getStatusCode();
+                        metrics.connectTime = sConnectTime.get();
+                    }
+                    if (status.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        breaker.recordSuccess();
+                        recorded = true;
+                        return response;
+                    }
+
+                    // Server is struggling, so release the connection and back off
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+                    failure = new ParseException("Forecast API returned " + status);
+                } catch (IOException e) {
+                    if (control != null && control.isAborted()) {
+                        // We dropped the connection ourselves
+                        throw new ParseException("Request cancelled", e);
+                    }
+                    failure = new ParseException("Problem calling forecast API", e);
+                    if (metrics != null) {
+                        metrics.status = 0;
+                        metrics.connectTime = sConnectTime.get();
+                    }
+                }
+
+                breaker.recordFailure(System.currentTimeMillis());
+                recorded = true;
+                if (attempt + 1 >= RETRY_ATTEMPTS
+                        || breaker.getState() == CircuitBreaker.STATE_OPEN) {
+                    throw failure;
+                }
+
+                long delay = getRetryDelay(attempt);
+                if (control != null
+                        && System.currentTimeMillis() + delay >= control.getDeadline()) {
+                    // No time left for another attempt
+                    throw failure;
+                }
+                Log.w(TAG, "Retrying request in " + delay + "ms after: " + failure.getMessage());
+                breaker.recordRetry();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw failure;
+                }
+            }
+        } finally {
+            if (trial && !recorded) {
+                breaker.recordAbandoned();
+            }
+        }
+    }
+
+    /**
+     * Build a request for the given URL, sending any of the given validators.
+     */
+    private static HttpGet newRequest(String url, CacheValidators validators) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader("User-Agent", sUserAgent);
+        request.setHeader("Accept-Encoding", ResponseStream.ACCEPT_ENCODING);
+        if (validators != null) {
+            if (validators.getEtag() != null) {
+                request.setHeader("If-None-Match", validators.getEtag());
+            }
+            if (validators.getLastModified() != null) {
+                request.setHeader("If-Modified-Since", validators.getLastModified());
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Return how long the given response may be cached for, in milliseconds,
+     * using any <code>Cache-Control</code> directives or {@link #CACHE_TTL}.
+     * Returns 0 if it must not be cached.
+     */
+    static long getCacheTtl(HttpResponse response) {
+        String control = getHeader(response, "Cache-Control");
+        if (control == null) {
+            return CACHE_TTL;
+        }
+
+        for (String directive : control.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-store") || directive.equals("no-cache")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    long seconds = Long.parseLong(directive.substring(8).trim());
+                    return Math.max(seconds, 0) * DateUtils.SECOND_IN_MILLIS;
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring invalid " + directive);
+                }
+            }
+        }
+        return CACHE_TTL;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
+
+    /**
+     * Open a conditional request to the given URL, like
+     * {@link #queryApiStream(String, CacheValidators)}, and hand the response
+     * to the given handler. The response is always released once the handler
+     * returns, even when it fails, so its connection goes back to the pool.
+     * A response the handler fails on is also dropped from the
+     * {@link WebserviceCache}.
+     * <p>
+     * Returns whatever the handler returned, or null without calling it when
+     * the webservice answered <code>304 Not Modified</code>. Any given stats
+     * are filled with the bytes read once the response has been released.
+     * <p>
+     * Every call is timed into a {@link RequestMetrics}, which is logged and
+     * kept in the {@link RequestLog} once finished.
+     */
+    static <T> T queryApi(String url, CacheValidators validators, ParseStats stats,
+            WebserviceResponse.Handler<T> handler) throws ParseException {
+        RequestMetrics metrics = new RequestMetrics(resolveEndpoint(url));
+        WebserviceResponse response = null;
+        boolean success = false;
+        try {
+            InputStream stream = queryApiStream(url, validators, metrics);
+            if (stream == null) {
+                success = true;
+                return null;
+            }
+
+            response = new WebserviceResponse(url, stream);
+            long parseStart = System.nanoTime();
+            try {
+                T result = handler.handleResponse(response);
+                success = true;
+                return result;
+            } catch (ParseException e) {
+                response.invalidate();
+                throw e;
+            } catch (RuntimeException e) {
+                response.invalidate();
+                throw e;
+            } finally {
+                metrics.parseTime = (System.nanoTime() - parseStart) / 1000000;
+            }
+        } finally {
+            if (response != null) {
+                response.release();
+                metrics.bytesReceived = response.getReceivedBytes();
+                metrics.bytesDecoded = response.getDecodedBytes();
+                metrics.forecasts = response.getForecastCount();
+                if (stats != null) {
+                    stats.bytesReceived = metrics.bytesReceived;
+                    stats.bytesDecoded = metrics.bytesDecoded;
+                }
+            }
+            metrics.failed = !success;
+            metrics.totalTime = metrics.elapsed();
+            sRequestLog.add(metrics);
+            Log.d(TAG, "Request finished with " + metrics);
+        }
+    }
+
+    /**
+     * Close the given response stream once we've finished reading it, letting
+     * any underlying connection be reused.
+     */
+    public static void closeStream(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Problem closing response stream", e);
+        }
+        closeRetiredConnections();
+    }
+
+    /**
+     * Abandon the given response stream before reaching its end, dropping
+     * the underlying connection instead of downloading the remaining body.
+     */
+    public static void abortStream(InputStream stream) {
+        try {
+            if (stream instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger)stream).abortConnection();
+            } else {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Problem aborting response stream", e);
+        }
+        closeRetiredConnections();
     }
 
     /**
@@ -138,8 +1082,7 @@ public class WebserviceHelper {
         if (sUserAgent == null) {
             prepareUserAgent(context);
         }
-
-        Uri appWidgetForecasts = Uri.withAppendedPath(appWidgetUri, AppWidgets.TWIG_FORECASTS);
+        prepareCache(context);
 
         ContentResolver resolver = context.getContentResolver();
 
@@ -147,6 +1090,7 @@ public class WebserviceHelper {
         double lat = Double.NaN;
         double lon = Double.NaN;
         String countryCode = null;
+        CacheValidators validators = null;
 
         // Pull exact forecast location from database
         try {
@@ -155,6 +1099,8 @@ public class WebserviceHelper {
                 lat = cursor.getDouble(COL_LAT);
                 lon = cursor.getDouble(COL_LON);
                 countryCode = cursor.getString(COL_COUNTRY_CODE);
+                validators = new CacheValidators(cursor.getString(COL_ETAG),
+                        cursor.getString(COL_LAST_MODIFIED));
             }
         } finally {
             if (cursor != null) {
@@ -164,25 +1110,211 @@ public class WebserviceHelper {
 
         Log.d(TAG, "using country code=" + countryCode);
 
-        // Query webservice for this location
-        List<Forecast> forecasts = null;
+        // Query webservice for this location, falling back across every
+        // source covering its country within a single deadline
+        ForecastSource source = new FallbackSource(SOURCE_DEADLINE, SOURCE_HEDGE_DELAY,
+                getSources(countryCode));
+        ForecastBatch forecasts = sCoalescer.getForecasts(source, lat, lon, days, validators);
+
+        if (validators != null && validators.isNotModified()) {
+            // Stored forecasts are still current, so only mark them as fresh
+            Log.d(TAG, "Forecasts not modified since last update");
+            ContentValues values = new ContentValues();
+            values.put(AppWidgetsColumns.LAST_UPDATED, System.currentTimeMillis());
+            resolver.update(appWidgetUri, values, null, null);
+            return;
+        }
+
+        if (forecasts == null || forecasts.size() == 0) {
+            throw new ParseException("No forecasts found from webservice query");
+        }
+
+        saveForecasts(context, appWidgetUri, forecasts, validators);
+    }
+
+    /**
+     * Return every source able to answer for widgets in the given country,
+     * highest priority first.
+     */
+    static ForecastSource[] getSources(String countryCode) {
         if (COUNTRY_US.equals(countryCode)) {
-            forecasts = new NoaaSource().getForecasts(lat, lon, days);
+            return new ForecastSource[] { new NoaaSource(), new MetarSource() };
+        }
+        return new ForecastSource[] { new MetarSource() };
+    }
+
+    /**
+     * Start {@link #updateForecasts(Context, Uri, int)} on the bounded
+     * {@link #getExecutor()}, so its webservice query runs there too. This
+     * returns immediately, unless the executor is backed up and the update
+     * runs on the calling thread. The returned future throws an
+     * {@link java.util.concurrent.ExecutionException} wrapping any
+     * {@link ParseException}.
+     */
+    public static Future<Void> updateForecastsAsync(final Context context,
+            final Uri appWidgetUri, final int days) {
+        return sExecutor.submit(new Callable<Void>() {
+            public Void call() throws ParseException {
+                updateForecasts(context, appWidgetUri, days);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Perform a single webservice query to retrieve and store forecasts for
+     * every given widget in the US, sharing one request between widgets at
+     * the same point. Widgets elsewhere, or that the response didn't cover,
+     * are left untouched so they can be updated one at a time. Returns the
+     * number of widgets updated.
+     */
+    public static int updateForecasts(Context context, Uri[] appWidgetUris, int days)
+            throws ParseException {
+
+        if (sUserAgent == null) {
+            prepareUserAgent(context);
+        }
+        prepareCache(context);
+
+        ContentResolver resolver = context.getContentResolver();
+
+        // Find the distinct points we need, and which point each widget uses
+        List<double[]> points = new ArrayList<double[]>();
+        Map<String, Integer> pointIndexes = new HashMap<String, Integer>();
+        int[] widgetPoints = new int[appWidgetUris.length];
+
+        for (int i = 0; i < appWidgetUris.length; i++) {
+            widgetPoints[i] = -1;
+
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(appWidgetUris[i], PROJECTION_APPWIDGET, null, null, null);
+                if (cursor == null || !cursor.moveToFirst()
+                        || !COUNTRY_US.equals(cursor.getString(COL_COUNTRY_CODE))) {
+                    continue;
+                }
+
+                double lat = cursor.getDouble(COL_LAT);
+                double lon = cursor.getDouble(COL_LON);
+                if (Double.isNaN(lat) || Double.isNaN(lon)) {
+                    continue;
+                }
+
+                String key = Math.round(lat / ForecastCoalescer.QUANTUM) + ","
+                        + Math.round(lon / ForecastCoalescer.QUANTUM);
+                Integer index = pointIndexes.get(key);
+                if (index == null) {
+                    index = points.size();
+                    points.add(new double[] { lat, lon });
+                    pointIndexes.put(key, index);
+                }
+                widgetPoints[i] = index;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        if (points.isEmpty()) {
+            return 0;
+        }
+
+        // Query webservice for every point, splitting into chunks if needed
+        ForecastBatch[] forecasts = new ForecastBatch[points.size()];
+        NoaaSource source = new NoaaSource();
+        for (int start = 0; start < points.size(); start += NoaaSource.MAX_BATCH_POINTS) {
+            int count = Math.min(points.size() - start, NoaaSource.MAX_BATCH_POINTS);
+            double[] lats = new double[count];
+            double[] lons = new double[count];
+            for (int i = 0; i < count; i++) {
+                lats[i] = points.get(start + i)[0];
+                lons[i] = points.get(start + i)[1];
+            }
+            ForecastBatch[] chunk = source.getForecasts(lats, lons, days);
+            System.arraycopy(chunk, 0, forecasts, start, count);
+        }
+
+        // Hand each widget the forecasts for its point
+        int updated = 0;
+        for (int i = 0; i < appWidgetUris.length; i++) {
+            if (widgetPoints[i] == -1) {
+                continue;
+            }
+            ForecastBatch pointForecasts = forecasts[widgetPoints[i]];
+            if (pointForecasts == null || pointForecasts.size() == 0) {
+                Log.d(TAG, "No batch forecasts found for " + appWidgetUris[i]);
+                continue;
+            }
+            saveForecasts(context, appWidgetUris[i], pointForecasts, null);
+            updated++;
+        }
+
+        Log.d(TAG, "Updated " + updated + " widgets from " + points.size() + " points");
+        return updated;
+    }
+
+    /**
+     * Store freshly parsed forecasts for the given widget, along with its
+     * {@link ForecastSnapshot}, and mark it as updated. Any given validators
+     * are kept for the next conditional request, otherwise any stored ones are
+     * cleared since they no longer describe the stored forecasts.
+     */
+    private static void saveForecasts(Context context, Uri appWidgetUri,
+            ForecastBatch forecasts, CacheValidators validators) {
+        ContentResolver resolver = context.getContentResolver();
+        storeForecasts(resolver, appWidgetUri, forecasts);
+
+        // Keep parsed results around so they can be replayed without XML
+        try {
+            ForecastSnapshot.write(context, ContentUris.parseId(appWidgetUri), forecasts);
+        } catch (IOException e) {
+            Log.w(TAG, "Problem writing forecast snapshot", e);
+        }
+
+        // Mark widget cache as being updated, keeping validators for next time
+        ContentValues values = new ContentValues();
+        values.put(AppWidgetsColumns.LAST_UPDATED, System.currentTimeMillis());
+        if (validators != null) {
+            values.put(AppWidgetsColumns.ETAG, validators.getEtag());
+            values.put(AppWidgetsColumns.LAST_MODIFIED, validators.getLastModified());
         } else {
-            forecasts = new MetarSource().getForecasts(lat, lon, days);
+            values.putNull(AppWidgetsColumns.ETAG);
+            values.putNull(AppWidgetsColumns.LAST_MODIFIED);
         }
+        resolver.update(appWidgetUri, values, null, null);
+    }
 
+    /**
+     * Reload the forecasts from the last successful update of the given
+     * widget out of its {@link ForecastSnapshot}, without touching the
+     * network or parsing any XML. Returns false if no usable snapshot exists.
+     * This doesn't change {@link AppWidgetsColumns#LAST_UPDATED}, since the
+     * data is no fresher than before.
+     */
+    public static boolean replayForecasts(Context context, Uri appWidgetUri) {
+        ForecastBatch forecasts = ForecastSnapshot.read(context,
+                ContentUris.parseId(appWidgetUri));
         if (forecasts == null || forecasts.size() == 0) {
-            throw new ParseException("No forecasts found from webservice query");
+            return false;
         }
 
+        storeForecasts(context.getContentResolver(), appWidgetUri, forecasts);
+        return true;
+    }
+
+    /**
+     * Replace any stored forecasts covered by the given forecasts, and
+     * anything before today, with the given forecasts.
+     */
+    private static void storeForecasts(ContentResolver resolver, Uri appWidgetUri,
+            ForecastBatch forecasts) {
+        Uri appWidgetForecasts = Uri.withAppendedPath(appWidgetUri, AppWidgets.TWIG_FORECASTS);
+
         // Purge existing forecasts covered by incoming data, and anything
         // before today
         long lastMidnight = ForecastUtils.getLastMidnight();
-        long earliest = Long.MAX_VALUE;
-        for (Forecast forecast : forecasts) {
-            earliest = Math.min(earliest, forecast.validStart);
-        }
+        long earliest = forecasts.getEarliestValidStart();
 
         resolver.delete(appWidgetForecasts,
             ForecastsColumns.VALID_START + " >= " + earliest + " OR " +
@@ -190,24 +1322,21 @@ public class WebserviceHelper {
 
         // Insert any new forecasts found
         ContentValues values = new ContentValues();
-        for (Forecast forecast : forecasts) {
-            Log.d(TAG, "inserting forecast with validStart=" + forecast.validStart);
+        int count = forecasts.size();
+        for (int i = 0; i < count; i++) {
+            long validStart = forecasts.getValidStart(i);
+            Log.d(TAG, "inserting forecast with validStart=" + validStart);
             values.clear();
-            values.put(ForecastsColumns.VALID_START, forecast.validStart);
-            values.put(ForecastsColumns.TEMP_HIGH, forecast.tempHigh);
-            values.put(ForecastsColumns.TEMP_LOW, forecast.tempLow);
-            values.put(ForecastsColumns.CONDITIONS, forecast.conditions);
-            values.put(ForecastsColumns.URL, forecast.url);
-            if (forecast.alert) {
+            values.put(ForecastsColumns.VALID_START, validStart);
+            values.put(ForecastsColumns.TEMP_HIGH, forecasts.getTempHigh(i));
+            values.put(ForecastsColumns.TEMP_LOW, forecasts.getTempLow(i));
+            values.put(ForecastsColumns.CONDITIONS, forecasts.getConditions(i));
+            values.put(ForecastsColumns.URL, forecasts.getUrl(i));
+            if (forecasts.isAlert(i)) {
                 values.put(ForecastsColumns.ALERT, ForecastsColumns.ALERT_TRUE);
             }
             resolver.insert(appWidgetForecasts, values);
         }
-
-        // Mark widget cache as being updated
-        values.clear();
-        values.put(AppWidgetsColumns.LAST_UPDATED, System.currentTimeMillis());
-        resolver.update(appWidgetUri, values, null, null);
     }
 
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Handle on a single webservice response body, scoped to a call of
+ * {@link WebserviceHelper#queryApi(String, CacheValidators, ParseStats, Handler)}.
+ * Releasing it either drains the body so its connection can be reused, or
+ * drops the connection when the body was abandoned.
+ * <p>
+ * Every response opened and not yet released is tracked, and
+ * {@link #checkStale(long)} reports any held far longer than reading a
+ * response should take.
+ */
+final class WebserviceResponse {
+    private static final String TAG = "WebserviceResponse";
+
+    /**
+     * How long a response may stay unreleased before it's reported as stale,
+     * which is far longer than reading even a slow response takes.
+     */
+    static final long STALE_AGE = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    /**
+     * Every response opened and not yet released.
+     */
+    private static final Set<WebserviceResponse> sOutstanding = new HashSet<WebserviceResponse>();
+
+    /**
+     * Reads a response body into some result.
+     */
+    interface Handler<T> {
+        T handleResponse(WebserviceResponse response) throws ParseException;
+    }
+
+    private final String mUrl;
+    private final InputStream mBody;
+
+    private final long mOpenedAt = System.currentTimeMillis();
+
+    private boolean mAbandoned = false;
+    private boolean mReleased = false;
+    private boolean mReportedStale = false;
+    private int mForecasts = 0;
+
+    WebserviceResponse(String url, InputStream body) {
+        mUrl = url;
+        mBody = body;
+        synchronized (sOutstanding) {
+            sOutstanding.add(this);
+        }
+    }
+
+    /**
+     * Number of responses opened but not yet released.
+     */
+    static int getOutstandingCount() {
+        synchronized (sOutstanding) {
+            return sOutstanding.size();
+        }
+    }
+
+    /**
+     * Return how many responses have gone unreleased for longer than
+     * {@link #STALE_AGE} as of the given time, logging each one the first
+     * time it's found.
+     */
+    static int checkStale(long now) {
+        int stale = 0;
+        synchronized (sOutstanding) {
+            for (WebserviceResponse response : sOutstanding) {
+                if (now - response.mOpenedAt < STALE_AGE) {
+                    continue;
+                }
+                stale++;
+                if (!response.mReportedStale) {
+                    response.mReportedStale = true;
+                    Log.w(TAG, "Response for " + response.mUrl + " was never released");
+                }
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Stream across the response body.
+     */
+    InputStream getBody() {
+        return mBody;
+    }
+
+    /**
+     * Record how many forecasts were parsed out of this response, for its
+     * {@link RequestMetrics}.
+     */
+    void setForecastCount(int forecasts) {
+        mForecasts = forecasts;
+    }
+
+    int getForecastCount() {
+        return mForecasts;
+    }
+
+    /**
+     * Mark that we've read everything we need, so the rest of the body
+     * shouldn't be downloaded when released.
+     */
+    synchronized void abandon() {
+        mAbandoned = true;
+    }
+
+    /**
+     * Mark the body as unusable, keeping it out of the
+     * {@link WebserviceCache} and dropping its connection when released.
+     */
+    synchronized void invalidate() {
+        if (mBody instanceof ResponseStream) {
+            ((ResponseStream)mBody).discardCache();
+        }
+        WebserviceHelper.invalidateCache(mUrl);
+        mAbandoned = true;
+    }
+
+    /**
+     * Release this response and its connection. Safe to call more than
+     * once.
+     */
+    synchronized void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        synchronized (sOutstanding) {
+            sOutstanding.remove(this);
+        }
+
+        if (mAbandoned) {
+            WebserviceHelper.abortStream(mBody);
+        } else {
+            WebserviceHelper.closeStream(mBody);
+        }
+    }
+
+    /**
+     * Number of bytes read from the connection, before decoding. Zero when
+     * served from the cache.
+     */
+    long getReceivedBytes() {
+        return (mBody instanceof ResponseStream) ? ((ResponseStream)mBody).getReceivedBytes() : 0;
+    }
+
+    /**
+     * Number of bytes handed to our reader, after decoding. Zero when served
+     * from the cache.
+     */
+    long getDecodedBytes() {
+        return (mBody instanceof ResponseStream) ? ((ResponseStream)mBody).getDecodedBytes() : 0;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Queries through {@link AsyncForecastSource} on the shared, bounded
+ * executor from {@link WebserviceHelper#getExecutor()}.
+ */
+public class AsyncForecastSourceTest extends TestCase {
+
+    /**
+     * Source that holds every query made off the test thread until released.
+     */
+    private static class GatedSource implements ForecastSource {
+        final Thread mTestThread = Thread.currentThread();
+        final CountDownLatch mGate = new CountDownLatch(1);
+
+        public ForecastBatch getForecasts(double lat, double lon, int days,
+                CacheValidators validators) throws ParseException {
+            if (Thread.currentThread() != mTestThread) {
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    throw new ParseException("Interrupted", e);
+                }
+            }
+            ForecastBatch forecasts = new ForecastBatch(1);
+            forecasts.setTempHigh(forecasts.add(), Thread.currentThread() == mTestThread ? 1 : 0);
+            return forecasts;
+        }
+    }
+
+    public void testErrorReachesFutureAndCallback() throws Exception {
+        final ParseException[] reported = new ParseException[1];
+        final CountDownLatch called = new CountDownLatch(1);
+        AsyncForecastSource source = new AsyncForecastSource(new ForecastSource() {
+            public ForecastBatch getForecasts(double lat, double lon, int days,
+                    CacheValidators validators) throws ParseException {
+                throw new ParseException("Stub failed");
+            }
+        });
+
+        Future<ForecastBatch> future = source.getForecasts(38, -104, 4, null,
+                new AsyncForecastSource.Callback() {
+                    public void onForecasts(ForecastBatch forecasts) {
+                        called.countDown();
+                    }
+
+                    public void onError(ParseException e) {
+                        reported[0] = e;
+                        called.countDown();
+                    }
+                });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Failure was swallowed");
+        } catch (ExecutionException e) {
+            assertEquals("Stub failed", e.getCause().getMessage());
+        }
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertEquals("Stub failed", reported[0].getMessage());
+    }
+
+    public void testFullQueueRunsOnCaller() throws Exception {
+        GatedSource gated = new GatedSource();
+        AsyncForecastSource source = new AsyncForecastSource(gated);
+
+        // Occupy every worker and fill the queue behind them, until one
+        // more can't be queued and runs right here instead
+        List<Future<ForecastBatch>> queued = new ArrayList<Future<ForecastBatch>>();
+        int capacity = WebserviceHelper.WORKER_THREADS + WebserviceHelper.WORKER_QUEUE_SIZE;
+        Future<ForecastBatch> overflow = null;
+        while (overflow == null) {
+            Future<ForecastBatch> future = source.getForecasts(38, -104, 4, null, null);
+            if (future.isDone()) {
+                overflow = future;
+            } else {
+                queued.add(future);
+                assertTrue("queued " + queued.size(), queued.size() <= capacity);
+            }
+        }
+        assertTrue(queued.size() >= WebserviceHelper.WORKER_QUEUE_SIZE);
+        assertEquals(1, overflow.get().getTempHigh(0));
+        assertTrue(WebserviceHelper.getDiagnostics().contains("overflowed=1"));
+
+        gated.mGate.countDown();
+        for (Future<ForecastBatch> future : queued) {
+            assertEquals(0, future.get(5, TimeUnit.SECONDS).getTempHigh(0));
+        }
+    }
+}
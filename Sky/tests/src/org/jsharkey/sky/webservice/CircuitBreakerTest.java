@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Drives the {@link CircuitBreaker} state machine directly, and through
+ * {@link WebserviceHelper} for trial requests that never get an answer.
+ */
+public class CircuitBreakerTest extends TestCase {
+    private static final int THRESHOLD = 3;
+    private static final long INTERVAL = 1000;
+
+    private static final String PATH = "/forecasts/xml";
+
+    @Override
+    protected void setUp() throws Exception {
+        WebserviceHelper.setUserAgent("CircuitBreakerTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WebserviceHelper.setEndpoint(null);
+        WebserviceHelper.setRateLimit(WebserviceHelper.RATE_LIMIT, WebserviceHelper.RATE_BURST);
+    }
+
+    /**
+     * Return a breaker that opened at time 0.
+     */
+    private static CircuitBreaker newOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, INTERVAL);
+        for (int i = 0; i < THRESHOLD; i++) {
+            breaker.recordFailure(0);
+        }
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        return breaker;
+    }
+
+    /**
+     * Trip the breaker {@link WebserviceHelper} keeps for the given host, so
+     * that its next request is the trial.
+     */
+    private static CircuitBreaker tripHelperBreaker(String host) {
+        CircuitBreaker breaker = WebserviceHelper.getCircuitBreaker(host);
+        long longAgo = System.currentTimeMillis() - WebserviceHelper.BREAKER_OPEN_INTERVAL - 1;
+        for (int i = 0; i < breaker.getFailureThreshold(); i++) {
+            breaker.recordFailure(longAgo);
+        }
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        return breaker;
+    }
+
+    public void testTripsAtThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, INTERVAL);
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            assertEquals(CircuitBreaker.PERMIT_NORMAL, breaker.allowRequest(0));
+            breaker.recordFailure(0);
+            assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        }
+        breaker.recordFailure(0);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(1, breaker.getTripCount());
+
+        assertEquals(CircuitBreaker.PERMIT_REFUSED, breaker.allowRequest(INTERVAL - 1));
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    public void testSuccessResetsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, INTERVAL);
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            breaker.recordFailure(0);
+        }
+        breaker.recordSuccess();
+        assertEquals(0, breaker.getFailureCount());
+
+        breaker.recordFailure(0);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+    }
+
+    public void testSingleTrialAfterInterval() {
+        CircuitBreaker breaker = newOpenBreaker();
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+
+        // Everyone else waits for the trial to finish
+        assertEquals(CircuitBreaker.PERMIT_REFUSED, breaker.allowRequest(INTERVAL));
+        assertEquals(CircuitBreaker.PERMIT_REFUSED, breaker.allowRequest(INTERVAL * 10));
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    public void testTrialSuccessCloses() {
+        CircuitBreaker breaker = newOpenBreaker();
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL));
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureCount());
+        assertEquals(CircuitBreaker.PERMIT_NORMAL, breaker.allowRequest(INTERVAL));
+    }
+
+    public void testTrialFailureReopens() {
+        CircuitBreaker breaker = newOpenBreaker();
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL));
+        breaker.recordFailure(INTERVAL);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(2, breaker.getTripCount());
+
+        // The interval restarts from the failed trial
+        assertEquals(CircuitBreaker.PERMIT_REFUSED, breaker.allowRequest(INTERVAL * 2 - 1));
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL * 2));
+    }
+
+    public void testAbandonedTrialLetsNextThrough() {
+        CircuitBreaker breaker = newOpenBreaker();
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL));
+        breaker.recordAbandoned();
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(1, breaker.getTripCount());
+
+        // Interval isn't restarted, so the next request becomes the trial
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(INTERVAL));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+
+        // Nothing to hand back when there's no trial
+        CircuitBreaker closed = new CircuitBreaker(THRESHOLD, INTERVAL);
+        closed.recordAbandoned();
+        assertEquals(CircuitBreaker.STATE_CLOSED, closed.getState());
+    }
+
+    public void testInterruptedTrialIsHandedBack() throws Exception {
+        String host = "breaker-interrupted.invalid";
+        CircuitBreaker breaker = tripHelperBreaker(host);
+        WebserviceHelper.setEndpoint("http://" + host);
+
+        // Leave the limiter without tokens for a long while, so the trial
+        // request is sure to be waiting when we interrupt it
+        WebserviceHelper.setRateLimit(1000, 1);
+        Thread.sleep(10);
+        WebserviceHelper.setRateLimit(0.01, 1);
+        WebserviceHelper.getRateLimiter().acquire();
+
+        final ParseException[] failure = new ParseException[1];
+        Thread trial = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    WebserviceHelper.queryApiStream("http://example.com" + PATH);
+                } catch (ParseException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        trial.start();
+        Thread.sleep(100);
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        trial.interrupt();
+        trial.join();
+
+        assertNotNull(failure[0]);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(System.currentTimeMillis()));
+        breaker.recordSuccess();
+    }
+
+    public void testTrialHandedBackWhenClientThrows() throws Exception {
+        // No socket factory is registered for this scheme, so the client
+        // throws an unchecked exception instead of an IOException
+        String host = "breaker-unchecked.invalid";
+        CircuitBreaker breaker = tripHelperBreaker(host);
+        WebserviceHelper.setEndpoint("gopher://" + host);
+        WebserviceHelper.setRateLimit(1000, 10);
+
+        try {
+            WebserviceHelper.queryApiStream("http://example.com" + PATH);
+            fail("Request to unregistered scheme succeeded");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.PERMIT_TRIAL, breaker.allowRequest(System.currentTimeMillis()));
+        breaker.recordSuccess();
+    }
+}
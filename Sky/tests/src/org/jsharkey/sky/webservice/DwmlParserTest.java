@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Runs every {@link DwmlParser} engine over the same documents, checking
+ * they agree with {@link MapDwmlParser}, the original engine, and fail the
+ * same way on bad input.
+ */
+public class DwmlParserTest extends TestCase {
+    private static final String BAD_TEMPERATURE = "<value>47</value>";
+    private static final String BAD_TIMESTAMP = "<start-valid-time>2009-03-23T06:00:00-07:00";
+
+    private static DwmlParser[] newParsers() {
+        return new DwmlParser[] {
+            new MapDwmlParser(), new PullDwmlParser(false), new PullDwmlParser(true),
+            new SaxDwmlParser(false), new SaxDwmlParser(true), new ScannerDwmlParser(false),
+            new ScannerDwmlParser(true),
+        };
+    }
+
+    private static ByteArrayInputStream stream(String doc) throws Exception {
+        return new ByteArrayInputStream(doc.getBytes("UTF-8"));
+    }
+
+    private static void assertSameForecasts(String message, ForecastBatch expected,
+            ForecastBatch actual) {
+        assertEquals(message + " size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            String where = message + " forecast " + i;
+            assertEquals(where, expected.getValidStart(i), actual.getValidStart(i));
+            assertEquals(where, expected.getTempHigh(i), actual.getTempHigh(i));
+            assertEquals(where, expected.getTempLow(i), actual.getTempLow(i));
+            assertEquals(where, expected.getConditions(i), actual.getConditions(i));
+            assertEquals(where, expected.getUrl(i), actual.getUrl(i));
+            assertEquals(where, expected.isAlert(i), actual.isAlert(i));
+        }
+    }
+
+    private static void assertEnginesAgree(String doc) throws Exception {
+        ForecastBatch expected = new MapDwmlParser().parse(stream(doc), new ParseStats());
+        assertTrue(expected.size() > 0);
+
+        for (DwmlParser parser : newParsers()) {
+            assertSameForecasts(parser.getClass().getSimpleName(), expected,
+                    parser.parse(stream(doc), new ParseStats()));
+        }
+
+        Map<String, ForecastBatch> byLocation = new MultiPointDwmlParser().parse(stream(doc),
+                new ParseStats());
+        assertEquals(1, byLocation.size());
+        assertSameForecasts("MultiPointDwmlParser", expected,
+                byLocation.get(MultiPointDwmlParser.keyFor(0)));
+    }
+
+    public void testSample() throws Exception {
+        ForecastBatch forecasts = new MapDwmlParser().parse(
+                stream(DwmlFixtures.EXAMPLE_RESPONSE), new ParseStats());
+        assertEquals(5, forecasts.size());
+
+        // Hazard comes first, followed by each day in order
+        assertTrue(forecasts.isAlert(0));
+        assertEquals("Lake Wind Advisory", forecasts.getConditions(0));
+        assertEquals(32, forecasts.getTempHigh(1));
+        assertEquals(24, forecasts.getTempLow(1));
+        assertEquals("Slight Chance Snow Showers", forecasts.getConditions(1));
+        assertEquals(DwmlTimestamp.parse("2009-03-22T06:00:00-07:00"),
+                forecasts.getValidStart(1));
+        for (int i = 2; i < forecasts.size(); i++) {
+            assertTrue(forecasts.getValidStart(i) > forecasts.getValidStart(i - 1));
+        }
+    }
+
+    public void testEnginesAgreeOnSample() throws Exception {
+        assertEnginesAgree(DwmlFixtures.EXAMPLE_RESPONSE);
+    }
+
+    public void testEnginesAgreeOnGenerated() throws Exception {
+        for (int days = 1; days <= 7; days++) {
+            assertEnginesAgree(DwmlGenerator.generate(days, days % 3, days));
+        }
+    }
+
+    public void testMultiPoint() throws Exception {
+        ForecastBatch expected = new MapDwmlParser().parse(
+                stream(DwmlFixtures.EXAMPLE_RESPONSE), new ParseStats());
+        String doc = StandInServer.multiPoint(DwmlFixtures.EXAMPLE_RESPONSE, 3);
+
+        Map<String, ForecastBatch> byLocation = new MultiPointDwmlParser().parse(stream(doc),
+                new ParseStats());
+        assertEquals(3, byLocation.size());
+        for (int i = 0; i < 3; i++) {
+            assertSameForecasts("point " + i, expected,
+                    byLocation.get(MultiPointDwmlParser.keyFor(i)));
+        }
+    }
+
+    public void testBadTemperature() throws Exception {
+        String[] values = { "4x7", "-", "+", "2147483648", "-2147483649" };
+        for (String value : values) {
+            String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(BAD_TEMPERATURE,
+                    "<value>" + value + "</value>");
+            for (DwmlParser parser : newParsers()) {
+                try {
+                    parser.parse(stream(doc), new ParseStats());
+                    fail(parser.getClass().getSimpleName() + " accepted " + value);
+                } catch (ParseException e) {
+                    // Expected
+                }
+            }
+
+            try {
+                new MultiPointDwmlParser().parse(stream(doc), new ParseStats());
+                fail("MultiPointDwmlParser accepted " + value);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    public void testExtremeTemperatures() throws Exception {
+        String[] values = { "+47", "-47", "2147483647", "-2147483648", "40000" };
+        for (String value : values) {
+            assertEnginesAgree(DwmlFixtures.EXAMPLE_RESPONSE.replace(BAD_TEMPERATURE,
+                    "<value>" + value + "</value>"));
+        }
+    }
+
+    public void testPaddedTemperature() throws Exception {
+        String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(BAD_TEMPERATURE, "<value> 47 </value>");
+        for (DwmlParser parser : newParsers()) {
+            ForecastBatch forecasts = parser.parse(stream(doc), new ParseStats());
+            boolean found = false;
+            for (int i = 0; i < forecasts.size(); i++) {
+                found |= forecasts.getTempHigh(i) == 47;
+            }
+            assertTrue(parser.getClass().getSimpleName(), found);
+        }
+    }
+
+    public void testSaxRethrowsOwnError() throws Exception {
+        String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(BAD_TIMESTAMP,
+                "<start-valid-time>yesterday");
+        ParseException expected = null;
+        try {
+            DwmlTimestamp.parse("yesterday");
+        } catch (ParseException e) {
+            expected = e;
+        }
+        assertNotNull(expected);
+
+        try {
+            new SaxDwmlParser(false).parse(stream(doc), new ParseStats());
+            fail("SaxDwmlParser accepted a bad timestamp");
+        } catch (ParseException e) {
+            assertEquals(expected.getMessage(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Entity and encoding handling in {@link DwmlScanner}, which decodes the raw
+ * bytes itself instead of relying on an XML library.
+ */
+public class DwmlScannerTest extends TestCase {
+    private static final String AMPERSAND = "textField1=39.91&amp;textField2";
+    private static final String SUMMARY = "weather-summary=\"Partly Cloudy\"";
+
+    private static ForecastBatch parse(String doc, String charset) throws Exception {
+        return DwmlScanner.obtain().parse(new ByteArrayInputStream(doc.getBytes(charset)),
+                new ParseStats(), false);
+    }
+
+    private static void assertSameUrls(ForecastBatch expected, ForecastBatch actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getUrl(i), actual.getUrl(i));
+        }
+    }
+
+    private static void assertFails(String doc, String charset) throws Exception {
+        try {
+            parse(doc, charset);
+            fail("Expected ParseException");
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+
+    public void testCharacterReferences() throws Exception {
+        ForecastBatch expected = parse(DwmlFixtures.EXAMPLE_RESPONSE, "UTF-8");
+        for (String reference : new String[] { "&#38;", "&#x26;", "&#X26;", "&#x0026;" }) {
+            String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(AMPERSAND,
+                    "textField1=39.91" + reference + "textField2");
+            assertSameUrls(expected, parse(doc, "UTF-8"));
+        }
+    }
+
+    public void testMalformedReferences() throws Exception {
+        for (String reference : new String[] { "&#xZZ;", "&#12a;", "&#x;", "&#;", "&#0;",
+                "&#xD800;", "&#x110000;", "&bogus;" }) {
+            String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(AMPERSAND,
+                    "textField1=39.91" + reference + "textField2");
+            assertFails(doc, "UTF-8");
+        }
+    }
+
+    public void testUtf8Text() throws Exception {
+        String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace(SUMMARY,
+                "weather-summary=\"Caf\u00e9 &#233; &#x20AC;\"");
+        ForecastBatch forecasts = parse(doc, "UTF-8");
+        assertTrue(containsConditions(forecasts, "Caf\u00e9 \u00e9 \u20ac"));
+    }
+
+    public void testLatin1Declaration() throws Exception {
+        String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace("<?xml version=\"1.0\"?>",
+                "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>").replace(SUMMARY,
+                "weather-summary=\"Caf\u00e9 &#233;\"");
+        ForecastBatch forecasts = parse(doc, "ISO-8859-1");
+        assertTrue(containsConditions(forecasts, "Caf\u00e9 \u00e9"));
+
+        // Can't be written in a single ISO-8859-1 byte
+        assertFails(doc.replace("&#233;", "&#x20AC;"), "ISO-8859-1");
+    }
+
+    public void testUnsupportedEncoding() throws Exception {
+        String doc = DwmlFixtures.EXAMPLE_RESPONSE.replace("<?xml version=\"1.0\"?>",
+                "<?xml version=\"1.0\" encoding=\"Shift_JIS\"?>");
+        assertFails(doc, "UTF-8");
+    }
+
+    private static boolean containsConditions(ForecastBatch forecasts, String conditions) {
+        for (int i = 0; i < forecasts.size(); i++) {
+            if (conditions.equals(forecasts.getConditions(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
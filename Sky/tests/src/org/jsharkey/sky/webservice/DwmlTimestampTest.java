@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Checks {@link DwmlTimestamp} against {@link GregorianCalendar}.
+ */
+public class DwmlTimestampTest extends TestCase {
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second,
+            int millis) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertInvalid(String raw) {
+        try {
+            DwmlTimestamp.parse(raw);
+            fail("Accepted " + raw);
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+
+    public void testZulu() throws Exception {
+        assertEquals(utc(2009, 3, 22, 13, 0, 0, 0), DwmlTimestamp.parse("2009-03-22T13:00:00Z"));
+        assertEquals(utc(1970, 1, 1, 0, 0, 0, 0), DwmlTimestamp.parse("1970-01-01T00:00:00z"));
+    }
+
+    public void testOffsets() throws Exception {
+        long expected = utc(2009, 3, 22, 13, 0, 0, 0);
+        assertEquals(expected, DwmlTimestamp.parse("2009-03-22T06:00:00-07:00"));
+        assertEquals(expected, DwmlTimestamp.parse("2009-03-22T06:00:00-0700"));
+        assertEquals(expected, DwmlTimestamp.parse("2009-03-22T18:30:00+05:30"));
+    }
+
+    public void testFractionalSeconds() throws Exception {
+        assertEquals(utc(2009, 3, 22, 13, 0, 0, 250),
+                DwmlTimestamp.parse("2009-03-22T13:00:00.25Z"));
+        assertEquals(utc(2009, 3, 22, 13, 0, 0, 123),
+                DwmlTimestamp.parse("2009-03-22T13:00:00.123456Z"));
+    }
+
+    public void testCalendarEdges() throws Exception {
+        assertEquals(utc(2008, 2, 29, 12, 0, 0, 0), DwmlTimestamp.parse("2008-02-29T12:00:00Z"));
+        assertEquals(utc(2008, 3, 1, 0, 0, 0, 0), DwmlTimestamp.parse("2008-03-01T00:00:00Z"));
+        assertEquals(utc(2000, 12, 31, 23, 59, 59, 0),
+                DwmlTimestamp.parse("2000-12-31T23:59:59Z"));
+        assertEquals(utc(2100, 3, 1, 0, 0, 0, 0), DwmlTimestamp.parse("2100-03-01T00:00:00Z"));
+    }
+
+    public void testEveryDayOfYear() throws Exception {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2012, Calendar.JANUARY, 1, 6, 0, 0);
+        for (int i = 0; i < 366; i++) {
+            String raw = String.format("%04d-%02d-%02dT06:00:00Z", calendar.get(Calendar.YEAR),
+                    calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+            assertEquals(raw, calendar.getTimeInMillis(), DwmlTimestamp.parse(raw));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    public void testInvalid() {
+        assertInvalid("");
+        assertInvalid("2009-03-22");
+        assertInvalid("2009-03-22T13:00:00");
+        assertInvalid("2009/03/22T13:00:00Z");
+        assertInvalid("2009-13-22T13:00:00Z");
+        assertInvalid("2009-03-00T13:00:00Z");
+        assertInvalid("2009-03-22T13:60:00Z");
+        assertInvalid("2009-03-22T13:00:00ZZ");
+        assertInvalid("2009-03-22T13:00:00+7");
+        assertInvalid("2009-03-22T13:00:00-07:0x");
+        assertInvalid("2009-0a-22T13:00:00Z");
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Ordering, deadlines and cancellation in {@link FallbackSource}, using
+ * stand-in sources and a {@link StandInServer}.
+ */
+public class FallbackSourceTest extends TestCase {
+    private static final String HOST = "127.0.0.1";
+
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new StandInServer().start();
+        WebserviceHelper.setUserAgent("FallbackSourceTest");
+        WebserviceHelper.setEndpoint(mServer.getEndpoint());
+        WebserviceHelper.setRateLimit(1000, 100);
+        WebserviceHelper.getCircuitBreaker(HOST).recordSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WebserviceHelper.setEndpoint(null);
+        WebserviceHelper.setRateLimit(WebserviceHelper.RATE_LIMIT, WebserviceHelper.RATE_BURST);
+        WebserviceHelper.getCircuitBreaker(HOST).recordSuccess();
+        mServer.stop();
+    }
+
+    /**
+     * Source answering with a single forecast after a delay, or failing.
+     */
+    private static class StubSource implements ForecastSource {
+        final long mDelay;
+        final boolean mFails;
+        volatile String mSentEtag;
+
+        StubSource(long delay, boolean fails) {
+            mDelay = delay;
+            mFails = fails;
+        }
+
+        public ForecastBatch getForecasts(double lat, double lon, int days,
+                CacheValidators validators) throws ParseException {
+            mSentEtag = validators.getEtag();
+            try {
+                Thread.sleep(mDelay);
+            } catch (InterruptedException e) {
+                throw new ParseException("Interrupted", e);
+            }
+            if (mFails) {
+                throw new ParseException("Stub failed");
+            }
+            validators.update("\"stub\"", null);
+            ForecastBatch forecasts = new ForecastBatch(1);
+            forecasts.setTempHigh(forecasts.add(), 50);
+            return forecasts;
+        }
+    }
+
+    public void testFallsBackInOrder() throws Exception {
+        StubSource first = new StubSource(0, true);
+        StubSource second = new StubSource(0, false);
+        CacheValidators validators = new CacheValidators("\"first\"", null);
+
+        ForecastBatch forecasts = new FallbackSource(1000, 1000, first, second).getForecasts(
+                38, -104, 4, validators);
+        assertEquals(50, forecasts.getTempHigh(0));
+
+        // Only the first source sees our validators, and the winner's come back
+        assertEquals("\"first\"", first.mSentEtag);
+        assertNull(second.mSentEtag);
+        assertEquals("\"stub\"", validators.getEtag());
+    }
+
+    public void testHedgesSlowSource() throws Exception {
+        StubSource slow = new StubSource(2000, false);
+        StubSource fast = new StubSource(0, false);
+
+        long start = System.currentTimeMillis();
+        new FallbackSource(5000, 100, slow, fast).getForecasts(38, -104, 4,
+                new CacheValidators(null, null));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testAbortsBlockedRequestAtDeadline() throws Exception {
+        mServer.setLatency(3000);
+        RequestLog log = WebserviceHelper.getRequestLog();
+        long finished = log.getTotalCount();
+
+        long start = System.currentTimeMillis();
+        try {
+            new FallbackSource(300, 10000, new NoaaSource()).getForecasts(38, -104, 4, null);
+            fail("Answered before the stand-in server did");
+        } catch (ParseException e) {
+            // Expected
+        }
+
+        // The request blocked waiting for the response should be dropped
+        // right away instead of holding its connection until the server
+        // answers
+        while (log.getTotalCount() == finished) {
+            assertTrue(System.currentTimeMillis() - start < 1500);
+            Thread.sleep(10);
+        }
+        RequestMetrics[] metrics = log.snapshot();
+        assertTrue(metrics[metrics.length - 1].isFailed());
+        assertEquals(0, WebserviceHelper.getCircuitBreaker(HOST).getFailureCount());
+    }
+
+    public void testRetriesStopAtDeadline() throws Exception {
+        mServer.setErrorRate(1.0);
+
+        long start = System.currentTimeMillis();
+        try {
+            new FallbackSource(1000, 10000, new NoaaSource()).getForecasts(38, -104, 4, null);
+            fail("Answered with every request failing");
+        } catch (ParseException e) {
+            // Expected
+        }
+
+        // Every retry waits at least a second, so none fit in the deadline
+        assertEquals(1, mServer.getRequestCount());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testHedgesFromWorker() throws Exception {
+        // Fill every worker with a chain, each of which should still hedge
+        // instead of waiting out its slow source
+        FallbackSource chain = new FallbackSource(5000, 100, new StubSource(2000, false),
+                new StubSource(0, false));
+        AsyncForecastSource async = new AsyncForecastSource(chain);
+        List<Future<ForecastBatch>> futures = new ArrayList<Future<ForecastBatch>>();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < WebserviceHelper.WORKER_THREADS * 2; i++) {
+            futures.add(async.getForecasts(38, -104, 4, new CacheValidators(null, null),
+                    null));
+        }
+        for (Future<ForecastBatch> future : futures) {
+            assertEquals(50, future.get(5, TimeUnit.SECONDS).getTempHigh(0));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    public void testNestedInAttemptRunsInline() throws Exception {
+        // Fill every attempt thread with a chain of chains, which would
+        // starve if each inner chain queued its attempts behind the others
+        // and waited on them
+        FallbackSource inner = new FallbackSource(2000, 100, new StubSource(200, false),
+                new StubSource(0, false));
+        final FallbackSource outer = new FallbackSource(5000, 5000, inner);
+        final ForecastBatch[] results = new ForecastBatch[WebserviceHelper.ATTEMPT_THREADS * 2];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = outer.getForecasts(38, -104, 4,
+                                new CacheValidators(null, null));
+                    } catch (ParseException e) {
+                        // Checked below
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNotNull("chain " + i, results[i]);
+            assertEquals(50, results[i].getTempHigh(0));
+        }
+    }
+}
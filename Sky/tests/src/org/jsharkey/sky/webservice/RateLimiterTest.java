@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import junit.framework.TestCase;
+
+/**
+ * Pacing and accounting of {@link RateLimiter}, using rates fast enough to
+ * keep the test quick but slow enough to measure.
+ */
+public class RateLimiterTest extends TestCase {
+
+    public void testBurstIsFree() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire());
+        }
+        assertEquals(3, limiter.getAcquireCount());
+        assertEquals(0, limiter.getWaitCount());
+    }
+
+    public void testWaitsPastBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        assertEquals(0, limiter.acquire());
+
+        long start = System.nanoTime();
+        long waited = limiter.acquire();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        // One token every 50ms
+        assertTrue("waited " + waited, waited > 25 && waited <= 50);
+        assertTrue("slept " + elapsed, elapsed >= waited - 5);
+        assertEquals(1, limiter.getWaitCount());
+        assertEquals(waited, limiter.getTotalWait());
+        assertEquals(waited, limiter.getMaxWait());
+    }
+
+    public void testWaitersQueueInOrder() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        limiter.acquire();
+        long first = limiter.acquire();
+        long start = System.nanoTime();
+        limiter.acquire();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("first " + first + ", then " + elapsed, elapsed > 25);
+    }
+
+    public void testRefillsWhileIdle() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 2);
+        limiter.acquire();
+        limiter.acquire();
+        Thread.sleep(120);
+        assertEquals(0, limiter.acquire());
+        assertEquals(0, limiter.acquire());
+    }
+
+    public void testInterruptRefundsToken() throws Exception {
+        final RateLimiter limiter = new RateLimiter(2, 1);
+        limiter.acquire();
+
+        final boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join();
+        assertTrue(interrupted[0]);
+
+        // Our wait shouldn't be pushed back by the abandoned reservation
+        long waited = limiter.acquire();
+        assertTrue("waited " + waited, waited <= 500);
+    }
+
+    public void testSetRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.acquire();
+        limiter.setRate(1000, 5);
+        Thread.sleep(20);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire());
+        }
+
+        try {
+            limiter.setRate(0, 1);
+            fail("Accepted zero rate");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new RateLimiter(1, 0);
+            fail("Accepted zero burst");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Storage, expiry and eviction in {@link WebserviceCache}, using a scratch
+ * directory.
+ */
+public class WebserviceCacheTest extends TestCase {
+    private static final String URL_FIRST = "http://example.com/first";
+    private static final String URL_SECOND = "http://example.com/second";
+    private static final String URL_THIRD = "http://example.com/third";
+
+    private static final long TTL = 60 * 1000;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = File.createTempFile("WebserviceCacheTest", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static void put(WebserviceCache cache, String url, long ttl, String etag,
+            byte[] body) throws IOException {
+        WebserviceCache.Writer writer = cache.edit(url, ttl, etag, null);
+        writer.write(body, 0, body.length);
+        writer.commit();
+    }
+
+    private static byte[] read(WebserviceCache.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = entry.getBody();
+        byte[] buffer = new byte[256];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        entry.close();
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        assertNull(cache.get(URL_FIRST));
+        assertEquals(1, cache.getMissCount());
+
+        put(cache, URL_FIRST, TTL, "\"abc\"", "hello".getBytes());
+        WebserviceCache.Entry entry = cache.get(URL_FIRST);
+        assertNotNull(entry);
+        assertEquals("\"abc\"", entry.getEtag());
+        assertNull(entry.getLastModified());
+        assertTrue(entry.matches(new CacheValidators("\"abc\"", null)));
+        assertFalse(entry.matches(new CacheValidators("\"xyz\"", null)));
+        assertFalse(entry.matches(null));
+        assertEquals("hello", new String(read(entry)));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testSurvivesRestart() throws Exception {
+        put(new WebserviceCache(mDir, 64 * 1024), URL_FIRST, TTL, null, "hello".getBytes());
+
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        WebserviceCache.Entry entry = cache.get(URL_FIRST);
+        assertNotNull(entry);
+        assertEquals("hello", new String(read(entry)));
+    }
+
+    public void testExpiry() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        put(cache, URL_FIRST, -1, null, "stale".getBytes());
+        assertNull(cache.get(URL_FIRST));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        byte[] body = new byte[400];
+        WebserviceCache cache = new WebserviceCache(mDir, 1024);
+        put(cache, URL_FIRST, TTL, null, body);
+        put(cache, URL_SECOND, TTL, null, body);
+
+        // Touch the first so the second is now eldest
+        cache.get(URL_FIRST).close();
+        put(cache, URL_THIRD, TTL, null, body);
+
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.getSize() <= 1024);
+        assertNull(cache.get(URL_SECOND));
+        assertNotNull(cache.get(URL_FIRST));
+        assertNotNull(cache.get(URL_THIRD));
+    }
+
+    public void testOversizeBodyNotStored() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 1024);
+        byte[] body = new byte[(int)cache.getMaxEntryBytes() + 1];
+        put(cache, URL_FIRST, TTL, null, body);
+        assertNull(cache.get(URL_FIRST));
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    public void testDiscardAndRemove() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        WebserviceCache.Writer writer = cache.edit(URL_FIRST, TTL, null, null);
+        writer.write("partial".getBytes(), 0, 7);
+        writer.discard();
+        assertNull(cache.get(URL_FIRST));
+        assertEquals(0, mDir.listFiles().length);
+
+        put(cache, URL_FIRST, TTL, null, "hello".getBytes());
+        cache.remove(URL_FIRST);
+        assertNull(cache.get(URL_FIRST));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testResponseStreamCachesFullBody() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        byte[] body = new byte[10000];
+        ResponseStream stream = ResponseStream.wrap(new ByteArrayInputStream(body), null);
+        stream.setCacheWriter(cache.edit(URL_FIRST, TTL, null, null));
+
+        // Closing part way through reads the rest into the cache
+        stream.read(new byte[100]);
+        stream.close();
+        assertEquals(body.length, stream.getReceivedBytes());
+        assertEquals(body.length, read(cache.get(URL_FIRST)).length);
+    }
+
+    public void testResponseStreamAbortSkipsCache() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        ResponseStream stream = ResponseStream.wrap(new ByteArrayInputStream(new byte[10000]),
+                null);
+        stream.setCacheWriter(cache.edit(URL_FIRST, TTL, null, null));
+
+        // An early exit drops the partial entry instead of downloading the rest
+        stream.read(new byte[100]);
+        stream.abortConnection();
+        assertEquals(100, stream.getReceivedBytes());
+        assertNull(cache.get(URL_FIRST));
+    }
+
+    public void testConcurrentWritersDontCollide() throws Exception {
+        WebserviceCache cache = new WebserviceCache(mDir, 64 * 1024);
+        WebserviceCache.Writer first = cache.edit(URL_FIRST, TTL, null, null);
+        WebserviceCache.Writer second = cache.edit(URL_FIRST, TTL, null, null);
+        first.write("first".getBytes(), 0, 5);
+        second.write("second".getBytes(), 0, 6);
+        first.commit();
+        second.commit();
+        assertEquals("second", new String(read(cache.get(URL_FIRST))));
+    }
+}
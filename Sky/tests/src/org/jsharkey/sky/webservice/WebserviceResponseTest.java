@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2009 Jeff Sharkey, http://jsharkey.org/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jsharkey.sky.webservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.jsharkey.sky.webservice.Forecast.ParseException;
+
+/**
+ * Checks that every way out of
+ * {@link WebserviceHelper#queryApi(String, CacheValidators, ParseStats, WebserviceResponse.Handler)}
+ * releases its {@link WebserviceResponse} and connection, using a
+ * {@link StandInServer}.
+ */
+public class WebserviceResponseTest extends TestCase {
+    private static final String URL = "http://www.weather.gov" + StandInServer.PATH
+            + "?lat=38.000000&lon=-104.000000&format=24+hourly&numDays=7";
+
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new StandInServer().start();
+        WebserviceHelper.setUserAgent("WebserviceResponseTest");
+        WebserviceHelper.setEndpoint(mServer.getEndpoint());
+        WebserviceHelper.setRateLimit(1000, 100);
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WebserviceHelper.setEndpoint(null);
+        WebserviceHelper.setRateLimit(WebserviceHelper.RATE_LIMIT, WebserviceHelper.RATE_BURST);
+        mServer.stop();
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        int total = 0;
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            total += length;
+        }
+        return total;
+    }
+
+    public void testReleasedAfterSuccess() throws Exception {
+        int length = WebserviceHelper.queryApi(URL, null, null,
+                new WebserviceResponse.Handler<Integer>() {
+                    public Integer handleResponse(WebserviceResponse response)
+                            throws ParseException {
+                        assertEquals(1, WebserviceResponse.getOutstandingCount());
+                        try {
+                            return readFully(response.getBody());
+                        } catch (IOException e) {
+                            throw new ParseException("Problem reading", e);
+                        }
+                    }
+                });
+        assertTrue(length > 0);
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+    }
+
+    public void testReleasedAfterParseError() throws Exception {
+        try {
+            WebserviceHelper.queryApi(URL, null, null, new WebserviceResponse.Handler<Object>() {
+                public Object handleResponse(WebserviceResponse response) throws ParseException {
+                    assertEquals(1, WebserviceResponse.getOutstandingCount());
+                    throw new ParseException("Unusable response");
+                }
+            });
+            fail("Handler error was swallowed");
+        } catch (ParseException e) {
+            assertEquals("Unusable response", e.getMessage());
+        }
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+    }
+
+    public void testReleasedAfterUncheckedError() throws Exception {
+        try {
+            WebserviceHelper.queryApi(URL, null, null, new WebserviceResponse.Handler<Object>() {
+                public Object handleResponse(WebserviceResponse response) {
+                    throw new IllegalStateException("Handler bug");
+                }
+            });
+            fail("Handler error was swallowed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+    }
+
+    public void testReleasedAfterAbandon() throws Exception {
+        final ParseStats stats = new ParseStats();
+        ForecastBatch forecasts = WebserviceHelper.queryApi(URL, null, stats,
+                new WebserviceResponse.Handler<ForecastBatch>() {
+                    public ForecastBatch handleResponse(WebserviceResponse response)
+                            throws ParseException {
+                        ForecastBatch parsed = new ScannerDwmlParser(true).parse(
+                                response.getBody(), stats);
+                        assertTrue(stats.completedEarly);
+                        response.abandon();
+                        return parsed;
+                    }
+                });
+        assertTrue(forecasts.size() > 0);
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+
+        // The dropped connection shouldn't stop the next request
+        testReleasedAfterSuccess();
+    }
+
+    public void testNotModified() throws Exception {
+        WebserviceResponse.Handler<Object> handler = new WebserviceResponse.Handler<Object>() {
+            public Object handleResponse(WebserviceResponse response) {
+                throw new AssertionError("Handed a response with no body");
+            }
+        };
+        mServer.setNotModified(true);
+
+        CacheValidators validators = new CacheValidators("\"stored\"", null);
+        assertNull(WebserviceHelper.queryApi(URL, validators, null, handler));
+        assertTrue(validators.isNotModified());
+
+        // Nothing was sent to compare against, so the answer is meaningless
+        CacheValidators[] unconditional = { null, new CacheValidators(null, null) };
+        for (CacheValidators sent : unconditional) {
+            try {
+                WebserviceHelper.queryApi(URL, sent, null, handler);
+                fail("Accepted 304 to an unconditional request");
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+
+        mServer.setNotModified(false);
+        testReleasedAfterSuccess();
+    }
+
+    public void testRetiredPoolShutDown() throws Exception {
+        int length = WebserviceHelper.queryApi(URL, null, null,
+                new WebserviceResponse.Handler<Integer>() {
+                    public Integer handleResponse(WebserviceResponse response)
+                            throws ParseException {
+                        // Our connection is still leased from the old pool
+                        WebserviceHelper.setTimeouts(WebserviceHelper.CONNECT_TIMEOUT,
+                                WebserviceHelper.WEBSERVICE_TIMEOUT,
+                                WebserviceHelper.POOL_TIMEOUT);
+                        assertEquals(1, WebserviceHelper.getRetiredPoolCount());
+                        try {
+                            return readFully(response.getBody());
+                        } catch (IOException e) {
+                            throw new ParseException("Problem reading", e);
+                        }
+                    }
+                });
+        assertTrue(length > 0);
+        assertEquals(0, WebserviceHelper.getRetiredPoolCount());
+
+        // A pool with only idle connections goes right away
+        WebserviceHelper.setTimeouts(WebserviceHelper.CONNECT_TIMEOUT,
+                WebserviceHelper.WEBSERVICE_TIMEOUT, WebserviceHelper.POOL_TIMEOUT);
+        assertEquals(0, WebserviceHelper.getRetiredPoolCount());
+        testReleasedAfterSuccess();
+    }
+
+    public void testStaleCheck() throws Exception {
+        WebserviceResponse response = new WebserviceResponse(URL,
+                new ByteArrayInputStream(new byte[0]));
+        long now = System.currentTimeMillis();
+        assertEquals(1, WebserviceResponse.getOutstandingCount());
+        assertEquals(0, WebserviceResponse.checkStale(now));
+        assertEquals(1, WebserviceResponse.checkStale(now + WebserviceResponse.STALE_AGE));
+
+        response.release();
+        response.release();
+        assertEquals(0, WebserviceResponse.getOutstandingCount());
+        assertEquals(0, WebserviceResponse.checkStale(now + WebserviceResponse.STALE_AGE));
+    }
+}